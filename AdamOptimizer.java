@@ -0,0 +1,67 @@
+/**
+ * The Adam update rule with bias corrected first and second moments.
+ */
+class AdamOptimizer extends Optimizer {
+
+    public double Beta1 = 0.9;
+    public double Beta2 = 0.999;
+    public double Epsilon = 1e-8;
+
+    // Moment buffers, indexed by layer (0 -> W1 shape, 1 -> W2 shape):
+    protected double[][][] M = new double[2][][];
+    protected double[][][] V = new double[2][][];
+
+    AdamOptimizer(double rate) {
+        super(rate);
+    }
+
+    protected void Allocate(int num_inputs, int num_hidden, int num_outputs) {
+        M[0] = new double[num_inputs][num_hidden];
+        V[0] = new double[num_inputs][num_hidden];
+        M[1] = new double[num_hidden][num_outputs];
+        V[1] = new double[num_hidden][num_outputs];
+    }
+
+    protected void UpdateLayer(int layer, double[][] W, double a[], double delta[],
+                               int rows, int cols) {
+        double m[][] = M[layer];
+        double v[][] = V[layer];
+        double b1 = Beta1, b2 = Beta2;
+        double c1 = 1.0 - Math.pow(b1, Steps);
+        double c2 = 1.0 - Math.pow(b2, Steps);
+        double rate = CurrentRate * Math.sqrt(c2) / c1;
+        double eps = Epsilon * Math.sqrt(c2);
+        for (int r = 0; r < rows; r++) {
+            double w[] = W[r];
+            double mr[] = m[r];
+            double vr[] = v[r];
+            double ar = a[r];
+            for (int c = 0; c < cols; c++) {
+                double g = ar * delta[c];
+                mr[c] = b1 * mr[c] + (1.0 - b1) * g;
+                vr[c] = b2 * vr[c] + (1.0 - b2) * g * g;
+                w[c] += rate * mr[c] / (Math.sqrt(vr[c]) + eps);
+            }
+        }
+    }
+
+    protected int StateCount() {
+        return 2;
+    }
+
+    protected void UpdateParams(double W[][], double G[][], double state[][][]) {
+        double b1 = Beta1, b2 = Beta2;
+        double c1 = 1.0 - Math.pow(b1, Steps);
+        double c2 = 1.0 - Math.pow(b2, Steps);
+        double rate = CurrentRate * Math.sqrt(c2) / c1;
+        double eps = Epsilon * Math.sqrt(c2);
+        for (int r = 0; r < W.length; r++) {
+            double w[] = W[r], g[] = G[r], mr[] = state[0][r], vr[] = state[1][r];
+            for (int c = 0; c < w.length; c++) {
+                mr[c] = b1 * mr[c] + (1.0 - b1) * g[c];
+                vr[c] = b2 * vr[c] + (1.0 - b2) * g[c] * g[c];
+                w[c] += rate * mr[c] / (Math.sqrt(vr[c]) + eps);
+            }
+        }
+    }
+}
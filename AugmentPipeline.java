@@ -0,0 +1,251 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The AugmentPipeline class produces randomly distorted training examples
+ * from captured handwriting strokes on background threads.
+ * Each worker picks a stroke, normalizes it to its bounding box as
+ * testHand.PutChar does, applies a random scale, rotation, shift and
+ * per-point jitter, rasterizes it onto the XSIZE x YSIZE grid and puts the
+ * example into a bounded ring buffer. The trainer takes mini-batches from
+ * the buffer with TakeBatch, so augmentation overlaps training; workers
+ * block only when the buffer is full.
+ */
+public class AugmentPipeline extends Object {
+
+    // Distortion ranges:
+    public double MaxScale = 0.15;     // relative, around the grid center
+    public double MaxRotation = 0.15;  // radians
+    public double MaxShift = 0.1;      // fraction of the grid
+    public double MaxJitter = 0.02;    // fraction of the grid, per point
+
+    protected int XSize, YSize, NumClasses;
+    protected double Low, High;
+    protected int NumInputs, NumOutputs, Stride;
+
+    // Captured strokes (copied in AddExample):
+    protected List<double[]> StrokeX = new ArrayList<double[]>();
+    protected List<double[]> StrokeY = new ArrayList<double[]>();
+    protected List<Integer> Labels = new ArrayList<Integer>();
+
+    // Ring buffer of Capacity examples, inputs followed by outputs:
+    protected double Ring[];
+    protected int Capacity;
+    protected long Head = 0; // next slot to take
+    protected long Tail = 0; // next slot to fill
+    protected final ReentrantLock Lock = new ReentrantLock();
+    protected final Condition NotEmpty = Lock.newCondition();
+    protected final Condition NotFull = Lock.newCondition();
+
+    protected Thread Workers[];
+    protected volatile boolean Running = false;
+    protected long Seed;
+
+    /**
+     * Creates a pipeline.
+     *
+     * @param xsize       The grid width.
+     * @param ysize       The grid height.
+     * @param num_classes The number of character classes (output neurons).
+     * @param low         The value of an empty grid cell and of a wrong class.
+     * @param high        The value of a filled grid cell and of the right class.
+     * @param capacity    The number of examples the ring buffer holds.
+     * @param seed        Seed for the workers' random streams.
+     */
+    public AugmentPipeline(int xsize, int ysize, int num_classes,
+                           double low, double high, int capacity, long seed) {
+        XSize = xsize;
+        YSize = ysize;
+        NumClasses = num_classes;
+        Low = low;
+        High = high;
+        NumInputs = xsize * ysize;
+        NumOutputs = num_classes;
+        Stride = NumInputs + NumOutputs;
+        Capacity = Math.max(1, capacity);
+        Ring = new double[Capacity * Stride];
+        Seed = seed;
+    }
+
+    /**
+     * Adds a captured character. Must be called before Start.
+     *
+     * @param xs    Captured x coordinates.
+     * @param ys    Captured y coordinates.
+     * @param start Index of the first point of the character.
+     * @param end   Index one past the last point of the character.
+     * @param label The character class.
+     */
+    public void AddExample(int xs[], int ys[], int start, int end, int label) {
+        if (end <= start) return;
+        double x[] = new double[end - start];
+        double y[] = new double[end - start];
+        for (int i = start; i < end; i++) {
+            x[i - start] = xs[i];
+            y[i - start] = ys[i];
+        }
+        StrokeX.add(x);
+        StrokeY.add(y);
+        Labels.add(label);
+    }
+
+    /**
+     * Starts the worker threads.
+     *
+     * @param num_threads The number of worker threads.
+     */
+    public void Start(int num_threads) {
+        if (Labels.isEmpty()) {
+            System.out.println("Error: no examples in AugmentPipeline::Start");
+            return;
+        }
+        Running = true;
+        Workers = new Thread[Math.max(1, num_threads)];
+        SplittableRandom master = new SplittableRandom(Seed);
+        for (int t = 0; t < Workers.length; t++) {
+            SplittableRandom random = master.split();
+            Workers[t] = new Thread(() -> Produce(random), "AugmentPipeline-" + t);
+            Workers[t].setDaemon(true);
+            Workers[t].start();
+        }
+    }
+
+    /**
+     * Stops the worker threads and discards buffered examples.
+     */
+    public void Stop() {
+        Running = false;
+        if (Workers == null) return;
+        for (Thread t : Workers) t.interrupt();
+        for (Thread t : Workers) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+            }
+        }
+        Workers = null;
+        Head = Tail = 0;
+    }
+
+    /**
+     * Takes a mini-batch of augmented examples, waiting if the workers have
+     * not produced enough yet.
+     *
+     * @param ins  Receives num_cases * NumInputs input values.
+     * @param outs Receives num_cases * NumOutputs output values.
+     * @param num_cases The batch size.
+     */
+    public void TakeBatch(double ins[], double outs[], int num_cases) throws InterruptedException {
+        for (int k = 0; k < num_cases; k++) {
+            Lock.lock();
+            try {
+                while (Head == Tail) NotEmpty.await();
+                int base = (int) (Head % Capacity) * Stride;
+                System.arraycopy(Ring, base, ins, k * NumInputs, NumInputs);
+                System.arraycopy(Ring, base + NumInputs, outs, k * NumOutputs, NumOutputs);
+                Head++;
+                NotFull.signal();
+            } finally {
+                Lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Rasterizes points normalized to 0..1 onto a grid, in the same
+     * x-major order testHand uses.
+     *
+     * @param x     Normalized x coordinates.
+     * @param y     Normalized y coordinates.
+     * @param n     The number of points.
+     * @param grid  Receives xsize * ysize values, low or high.
+     */
+    public static void Rasterize(double x[], double y[], int n, int xsize, int ysize,
+                                 double low, double high, double grid[], int offset) {
+        java.util.Arrays.fill(grid, offset, offset + xsize * ysize, low);
+        for (int i = 0; i < n; i++) {
+            int ix = (int) (x[i] * xsize);
+            int iy = (int) (y[i] * ysize);
+            if (ix < 0) ix = 0;
+            if (ix >= xsize) ix = xsize - 1;
+            if (iy < 0) iy = 0;
+            if (iy >= ysize) iy = ysize - 1;
+            grid[offset + ix * ysize + iy] = high;
+        }
+    }
+
+    private void Produce(SplittableRandom random) {
+        double example[] = new double[Stride];
+        double px[] = new double[0], py[] = new double[0];
+        while (Running) {
+            int e = random.nextInt(Labels.size());
+            double sx[] = StrokeX.get(e), sy[] = StrokeY.get(e);
+            int n = sx.length;
+            if (px.length < n) {
+                px = new double[n];
+                py = new double[n];
+            }
+            Distort(sx, sy, n, px, py, random);
+            Rasterize(px, py, n, XSize, YSize, Low, High, example, 0);
+            int label = Labels.get(e);
+            for (int o = 0; o < NumOutputs; o++)
+                example[NumInputs + o] = o == label ? High : Low;
+            try {
+                Put(example);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    private void Put(double example[]) throws InterruptedException {
+        Lock.lock();
+        try {
+            while (Tail - Head >= Capacity) NotFull.await();
+            System.arraycopy(example, 0, Ring, (int) (Tail % Capacity) * Stride, Stride);
+            Tail++;
+            NotEmpty.signal();
+        } finally {
+            Lock.unlock();
+        }
+    }
+
+    // Normalizes the stroke to its bounding box, then applies a random
+    // scale and rotation about the center, a shift and per-point jitter:
+    private void Distort(double sx[], double sy[], int n, double px[], double py[],
+                         SplittableRandom random) {
+        double x_min = Double.MAX_VALUE, x_max = -Double.MAX_VALUE;
+        double y_min = Double.MAX_VALUE, y_max = -Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            x_min = Math.min(x_min, sx[i]);
+            x_max = Math.max(x_max, sx[i]);
+            y_min = Math.min(y_min, sy[i]);
+            y_max = Math.max(y_max, sy[i]);
+        }
+        if (x_min + 1 > x_max) {
+            x_min--;
+            x_max++;
+        }
+        if (y_min + 1 > y_max) {
+            y_min--;
+            y_max++;
+        }
+        double scale = 1.0 + Uniform(random, MaxScale);
+        double angle = Uniform(random, MaxRotation);
+        double cos = Math.cos(angle) * scale, sin = Math.sin(angle) * scale;
+        double dx = Uniform(random, MaxShift), dy = Uniform(random, MaxShift);
+        for (int i = 0; i < n; i++) {
+            double x = (sx[i] - x_min) / (x_max - x_min) - 0.5;
+            double y = (sy[i] - y_min) / (y_max - y_min) - 0.5;
+            px[i] = 0.5 + cos * x - sin * y + dx + Uniform(random, MaxJitter);
+            py[i] = 0.5 + sin * x + cos * y + dy + Uniform(random, MaxJitter);
+        }
+    }
+
+    private static double Uniform(SplittableRandom random, double max) {
+        return max == 0.0 ? 0.0 : random.nextDouble(-max, max);
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * The BinaryForward class is a forward pass kernel for networks whose
+ * inputs are all either Low or High, like the character grids of testHand.
+ * Inputs are packed one bit per neuron into long words. The hidden
+ * pre-activations start from a precomputed vector for the all-Low input
+ * (or the all-High input, whichever is closer) and then add (or subtract)
+ * one scaled W1 row per differing bit, instead of a full matrix product.
+ * The precomputed vectors are rebuilt whenever the network's
+ * WeightsVersion changes.
+ */
+class BinaryForward extends Object {
+
+    protected Neural Net;
+    protected double Low;
+    protected double High;
+    protected int NumInputs;
+    protected int NumHidden;
+    protected int NumOutputs;
+
+    // Hidden pre-activations for the all-Low and all-High inputs:
+    protected double LowBase[];
+    protected double HighBase[];
+    // Delta[i][h] == (High - Low) * W1[i][h]:
+    protected double[][] Delta;
+    protected int Version;
+
+    protected long Bits[];
+
+    /**
+     * Creates a binary input kernel for a network.
+     *
+     * @param net  The network whose weights are used.
+     * @param low  The input value encoded as a 0 bit.
+     * @param high The input value encoded as a 1 bit.
+     */
+    BinaryForward(Neural net, double low, double high) {
+        Net = net;
+        Low = low;
+        High = high;
+        NumInputs = net.NumInputs;
+        NumHidden = net.NumHidden;
+        NumOutputs = net.NumOutputs;
+        LowBase = new double[NumHidden];
+        HighBase = new double[NumHidden];
+        Delta = new double[NumInputs][NumHidden];
+        Bits = new long[Words(NumInputs)];
+        Rebuild();
+    }
+
+    /**
+     * Returns the number of long words needed for n input bits.
+     */
+    public static int Words(int n) {
+        return (n + 63) >>> 6;
+    }
+
+    /**
+     * Packs input values into bits.
+     *
+     * @param inputs The input values.
+     * @param bits   Receives one bit per input, Words(NumInputs) longs.
+     * @return False if an input is neither Low nor High.
+     */
+    public boolean Pack(double inputs[], long bits[]) {
+        java.util.Arrays.fill(bits, 0L);
+        for (int i = 0; i < NumInputs; i++) {
+            if (inputs[i] == High) bits[i >>> 6] |= 1L << i;
+            else if (inputs[i] != Low) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs the forward pass for the network's current Inputs, leaving the
+     * results in the network's Hidden and Outputs arrays as ForwardPass does.
+     *
+     * @param net The network (the one this kernel was built for).
+     * @return False if the inputs are not binary; nothing is computed then.
+     */
+    public boolean ForwardPass(Neural net) {
+        if (!Pack(net.Inputs, Bits)) return false;
+        ForwardPass(Bits, net.Hidden, net.Outputs);
+        return true;
+    }
+
+    /**
+     * Runs the forward pass for packed inputs.
+     *
+     * @param bits    The packed inputs.
+     * @param hidden  Receives the hidden pre-activations.
+     * @param outputs Receives the output values.
+     */
+    public void ForwardPass(long bits[], double hidden[], double outputs[]) {
+        if (Net.WeightsVersion != Version) Rebuild();
+        int set = 0;
+        for (long w : bits) set += Long.bitCount(w);
+        if (2 * set <= NumInputs) {
+            // start from all-Low and add the rows of set bits:
+            System.arraycopy(LowBase, 0, hidden, 0, NumHidden);
+            for (int k = 0; k < bits.length; k++) {
+                long w = bits[k];
+                while (w != 0L) {
+                    double row[] = Delta[(k << 6) + Long.numberOfTrailingZeros(w)];
+                    for (int h = 0; h < NumHidden; h++)
+                        hidden[h] += row[h];
+                    w &= w - 1;
+                }
+            }
+        } else {
+            // start from all-High and subtract the rows of clear bits:
+            System.arraycopy(HighBase, 0, hidden, 0, NumHidden);
+            for (int k = 0; k < bits.length; k++) {
+                long w = ~bits[k];
+                if (k == bits.length - 1 && (NumInputs & 63) != 0)
+                    w &= (1L << (NumInputs & 63)) - 1;
+                while (w != 0L) {
+                    double row[] = Delta[(k << 6) + Long.numberOfTrailingZeros(w)];
+                    for (int h = 0; h < NumHidden; h++)
+                        hidden[h] -= row[h];
+                    w &= w - 1;
+                }
+            }
+        }
+        double W2[][] = Net.W2;
+        for (int o = 0; o < NumOutputs; o++)
+            outputs[o] = 0.0;
+        for (int h = 0; h < NumHidden; h++) {
+            double s = Neural.ShiftedSigmoid(hidden[h]);
+            for (int o = 0; o < NumOutputs; o++)
+                outputs[o] += s * W2[h][o];
+        }
+        Net.ActivateOutputs(outputs, 0);
+    }
+
+    private void Rebuild() {
+        Version = Net.WeightsVersion;
+        double W1[][] = Net.W1;
+        java.util.Arrays.fill(LowBase, 0.0);
+        java.util.Arrays.fill(HighBase, 0.0);
+        double scale = High - Low;
+        for (int i = 0; i < NumInputs; i++) {
+            for (int h = 0; h < NumHidden; h++) {
+                LowBase[h] += Low * W1[i][h];
+                HighBase[h] += High * W1[i][h];
+                Delta[i][h] = scale * W1[i][h];
+            }
+        }
+    }
+}
@@ -0,0 +1,349 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * The forward pass of one network shape, generated by CompiledForward.
+ * The hidden and output sums are left in hidden and out (before the output
+ * activation); act is scratch for the hidden activations.
+ */
+interface SpecializedForward {
+    void Forward(double in[], int base, double hidden[], double act[], double out[], int out_base);
+}
+
+/**
+ * The CompiledForward class specializes the forward pass of a trained
+ * network whose weights will not change. It writes the Java source of a
+ * class for the network's exact shape, compiles it in memory with the
+ * system Java compiler and defines it as a hidden class, so the JIT
+ * compiles a forward pass in which every dimension is a constant:
+ *
+ *  - each hidden and output neuron's sum is unrolled into one expression
+ *    (rows longer than UNROLL stay loops, with constant bounds),
+ *  - the weights are static final arrays of the hidden class (passed as its
+ *    class data), read at constant indices, so bounds checks fold away,
+ *  - the sums are split over methods of at most MAX_TERMS products, which
+ *    keeps each method small enough for the JIT to compile.
+ *
+ * The sums are added in the same order as Neural.ForwardPass, so the
+ * results are the same; Compile checks this on a set of inputs and gives
+ * up (returning null) if they differ, if no compiler is available (a JRE
+ * without javax.tools) or if the class cannot be defined. ForwardPass
+ * returns false once the network's WeightsVersion changes, so callers
+ * fall back to the ordinary loops after training.
+ */
+class CompiledForward extends Object {
+
+    // Rows of at most this many weights are unrolled:
+    public static final int UNROLL = 64;
+    // Products per generated method:
+    public static final int MAX_TERMS = 256;
+    // Inputs compared with Neural.ForwardPass by Compile:
+    public static final int CHECK_CASES = 64;
+
+    protected Neural Net;
+    protected int NumInputs;
+    protected int NumHidden;
+    protected int NumOutputs;
+    protected int Version;
+    protected SpecializedForward Kernel;
+    protected double Act[];
+
+    private CompiledForward(Neural net, SpecializedForward kernel, int version) {
+        Net = net;
+        NumInputs = net.NumInputs;
+        NumHidden = net.NumHidden;
+        NumOutputs = net.NumOutputs;
+        Kernel = kernel;
+        Version = version;
+        Act = new double[NumHidden];
+    }
+
+    /**
+     * Specializes the forward pass for a network's current weights.
+     *
+     * @param net The network; its weights are copied.
+     * @return The compiled kernel, or null if it could not be built or does
+     *         not reproduce Neural.ForwardPass (the reason is printed).
+     */
+    public static CompiledForward Compile(Neural net) {
+        int ni = net.NumInputs, nh = net.NumHidden, no = net.NumOutputs;
+        double w1[] = new double[nh * ni];
+        double w2[] = new double[no * nh];
+        int version;
+        synchronized (net) {
+            version = net.WeightsVersion;
+            for (int i = 0; i < ni; i++)
+                for (int h = 0; h < nh; h++)
+                    w1[h * ni + i] = net.W1[i][h];
+            for (int h = 0; h < nh; h++)
+                for (int o = 0; o < no; o++)
+                    w2[o * nh + h] = net.W2[h][o];
+        }
+        String name = "NeuralKernel";
+        byte bytes[] = JavaC(name, Source(name, ni, nh, no));
+        if (bytes == null) return null;
+        CompiledForward compiled;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClassWithClassData(bytes, new Object[]{w1, w2}, true);
+            SpecializedForward kernel = (SpecializedForward) lookup
+                    .findConstructor(lookup.lookupClass(), java.lang.invoke.MethodType.methodType(void.class))
+                    .invoke();
+            compiled = new CompiledForward(net, kernel, version);
+        } catch (Throwable e) {
+            System.out.println("CompiledForward: could not define the kernel class: " + e);
+            return null;
+        }
+        if (!compiled.Check()) {
+            System.out.println("CompiledForward: kernel does not match Neural.ForwardPass, not used");
+            return null;
+        }
+        return compiled;
+    }
+
+    /**
+     * Runs the forward pass for the network's current Inputs, leaving the
+     * results in the network's Hidden and Outputs arrays as ForwardPass does.
+     *
+     * @param net The network (the one this kernel was compiled for).
+     * @return False if the weights changed since Compile; nothing is computed then.
+     */
+    public boolean ForwardPass(Neural net) {
+        if (net != Net || net.WeightsVersion != Version) return false;
+        Kernel.Forward(net.Inputs, 0, net.Hidden, Act, net.Outputs, 0);
+        net.ActivateOutputs(net.Outputs, 0);
+        return true;
+    }
+
+    /**
+     * Runs the forward pass for a batch of cases, like
+     * Neural.ForwardPass(ins, outs, num_cases); safe to call from several threads.
+     *
+     * @return False if the weights changed since Compile; nothing is computed then.
+     */
+    public boolean ForwardPass(double ins[], double outs[], int num_cases) {
+        if (Net.WeightsVersion != Version) return false;
+        double hidden[] = new double[NumHidden];
+        double act[] = new double[NumHidden];
+        for (int k = 0; k < num_cases; k++) {
+            Kernel.Forward(ins, k * NumInputs, hidden, act, outs, k * NumOutputs);
+            Net.ActivateOutputs(outs, k * NumOutputs);
+        }
+        return true;
+    }
+
+    // Compares the kernel with Neural.ForwardPass on zero, random inputs and
+    // random +-0.4 grids like testHand's, restoring the network's
+    // Inputs, Hidden and Outputs afterwards:
+    private boolean Check() {
+        Random random = new Random(1234);
+        double hidden[] = new double[NumHidden], act[] = new double[NumHidden];
+        double out[] = new double[NumOutputs];
+        synchronized (Net) {
+            if (Net.WeightsVersion != Version) return false;
+            double saved_in[] = Net.Inputs.clone(), saved_hidden[] = Net.Hidden.clone();
+            double saved_out[] = Net.Outputs.clone();
+            boolean same = true;
+            for (int k = 0; k < CHECK_CASES && same; k++) {
+                for (int i = 0; i < NumInputs; i++) {
+                    if (k == 0) Net.Inputs[i] = 0.0;
+                    else if ((k & 1) == 0) Net.Inputs[i] = random.nextBoolean() ? 0.4 : -0.4;
+                    else Net.Inputs[i] = 2.0 * random.nextDouble() - 1.0;
+                }
+                Net.ForwardPass();
+                Kernel.Forward(Net.Inputs, 0, hidden, act, out, 0);
+                Net.ActivateOutputs(out, 0);
+                same = Same(hidden, Net.Hidden) && Same(out, Net.Outputs);
+            }
+            System.arraycopy(saved_in, 0, Net.Inputs, 0, NumInputs);
+            System.arraycopy(saved_hidden, 0, Net.Hidden, 0, NumHidden);
+            System.arraycopy(saved_out, 0, Net.Outputs, 0, NumOutputs);
+            return same;
+        }
+    }
+
+    private static boolean Same(double a[], double b[]) {
+        for (int j = 0; j < a.length; j++)
+            if (a[j] != b[j] && !(Double.isNaN(a[j]) && Double.isNaN(b[j]))) return false;
+        return true;
+    }
+
+    /**
+     * Returns the source of the kernel class for one network shape.
+     */
+    public static String Source(String name, int ni, int nh, int no) {
+        StringBuffer sb = new StringBuffer();
+        sb.append("final class " + name + " implements SpecializedForward {\n");
+        sb.append("    static final double[] W1 = Data(0);\n");
+        sb.append("    static final double[] W2 = Data(1);\n\n");
+        sb.append("    private static double[] Data(int j) {\n");
+        sb.append("        try {\n");
+        sb.append("            return (double[]) java.lang.invoke.MethodHandles.classData(\n");
+        sb.append("                java.lang.invoke.MethodHandles.lookup(), \"_\", Object[].class)[j];\n");
+        sb.append("        } catch (IllegalAccessException e) {\n");
+        sb.append("            throw new IllegalStateException(e);\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+        sb.append("    private static double S(double x) {\n");
+        sb.append("        return (1.0 / (1.0 + Math.exp(-x))) - 0.5;\n");
+        sb.append("    }\n\n");
+        List<String> hidden = Layer(sb, "H", "W1", "in", "base + ", "hidden", "", ni, nh);
+        List<String> output = Layer(sb, "O", "W2", "act", "", "out", "out_base + ", nh, no);
+        sb.append("    public void Forward(double[] in, int base, double[] hidden, double[] act,\n");
+        sb.append("                        double[] out, int out_base) {\n");
+        for (String m : hidden)
+            sb.append("        " + m + "(in, base, hidden);\n");
+        sb.append("        for (int h = 0; h < " + nh + "; h++)\n");
+        sb.append("            act[h] = S(hidden[h]);\n");
+        for (String m : output)
+            sb.append("        " + m + "(act, out, out_base);\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    // Emits the methods computing to[t] = sum over r of from[r] * w[t * rows + r]
+    // for t < cols, returning their names. The H methods take (in, base, hidden)
+    // and the O methods (act, out, out_base):
+    private static List<String> Layer(StringBuffer sb, String prefix, String w,
+                                      String from, String from_off, String to, String to_off,
+                                      int rows, int cols) {
+        List<String> names = new ArrayList<String>();
+        String params = from_off.length() > 0 ? "double[] " + from + ", int base, double[] " + to
+                : "double[] " + from + ", double[] " + to + ", int out_base";
+        int cost = rows <= UNROLL ? rows : 8;
+        int t = 0;
+        while (t < cols) {
+            String name = prefix + names.size();
+            names.add(name);
+            sb.append("    private static void " + name + "(" + params + ") {\n");
+            int terms = 0;
+            do {
+                int k = t * rows;
+                if (rows <= UNROLL) {
+                    sb.append("        " + to + "[" + to_off + t + "] =");
+                    for (int r = 0; r < rows; r++) {
+                        sb.append(r == 0 ? " " : "\n            + ");
+                        sb.append(from + "[" + from_off + r + "] * " + w + "[" + (k + r) + "]");
+                    }
+                    if (rows == 0) sb.append(" 0.0");
+                    sb.append(";\n");
+                } else {
+                    sb.append("        {\n");
+                    sb.append("            double s = 0.0;\n");
+                    sb.append("            for (int r = 0; r < " + rows + "; r++)\n");
+                    sb.append("                s += " + from + "[" + from_off + "r] * " + w + "[" + k + " + r];\n");
+                    sb.append("            " + to + "[" + to_off + t + "] = s;\n");
+                    sb.append("        }\n");
+                }
+                terms += cost;
+                t++;
+            } while (t < cols && terms + cost <= MAX_TERMS);
+            sb.append("    }\n\n");
+        }
+        return names;
+    }
+
+    // Compiles one class in memory, returning its class file or null:
+    static byte[] JavaC(String name, String source) {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            System.out.println("CompiledForward: no Java compiler in this runtime");
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StandardJavaFileManager files = javac.getStandardFileManager(null, null, null);
+        JavaFileManager memory = new ForwardingJavaFileManager<StandardJavaFileManager>(files) {
+            public JavaFileObject getJavaFileForOutput(Location location, String class_name,
+                                                       JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///" + class_name + ".class"), kind) {
+                    public OutputStream openOutputStream() {
+                        return bytes;
+                    }
+                };
+            }
+        };
+        JavaFileObject unit = new SimpleJavaFileObject(URI.create("string:///" + name + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            public CharSequence getCharContent(boolean ignore_errors) {
+                return source;
+            }
+        };
+        // SpecializedForward must be on the compiler's class path:
+        String class_path = System.getProperty("java.class.path", ".");
+        try {
+            class_path = new File(CompiledForward.class.getProtectionDomain().getCodeSource()
+                    .getLocation().toURI()).getPath() + File.pathSeparator + class_path;
+        } catch (Exception e) {
+            // no code source: rely on java.class.path
+        }
+        StringWriter errors = new StringWriter();
+        List<String> options = Arrays.asList("-g:none", "-proc:none", "-classpath", class_path);
+        Boolean ok = javac.getTask(errors, memory, null, options, null, Arrays.asList(unit)).call();
+        if (ok == null || !ok || bytes.size() == 0) {
+            System.out.println("CompiledForward: compilation failed\n" + errors);
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    // keeps the timed loops from being optimized away:
+    static volatile double Sink;
+
+    /**
+     * Compiles a model and times Neural.ForwardPass against the compiled
+     * pass, printing the nanoseconds per pass of each over a few rounds.
+     */
+    public static void main(String argv[]) throws Exception {
+        if (argv.length < 1) {
+            System.out.println("usage: java CompiledForward <model> [passes]");
+            return;
+        }
+        Neural net = NNtool.LoadModel(argv[0]);
+        int passes = argv.length > 1 ? Integer.parseInt(argv[1]) : 2000000;
+        long start = System.nanoTime();
+        CompiledForward compiled = Compile(net);
+        if (compiled == null) return;
+        System.out.println("Compiled " + net.NumInputs + "x" + net.NumHidden + "x" + net.NumOutputs +
+                " in " + (System.nanoTime() - start) / 1000000 + " ms; matches Neural.ForwardPass");
+        Random random = new Random(1);
+        for (int i = 0; i < net.NumInputs; i++)
+            net.Inputs[i] = random.nextBoolean() ? 0.4 : -0.4;
+        for (int round = 0; round < 3; round++) {
+            double sum = 0.0;
+            start = System.nanoTime();
+            for (int k = 0; k < passes; k++) {
+                net.Inputs[k % net.NumInputs] = -net.Inputs[k % net.NumInputs];
+                net.ForwardPass();
+                sum += net.Outputs[0];
+            }
+            long loops = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int k = 0; k < passes; k++) {
+                net.Inputs[k % net.NumInputs] = -net.Inputs[k % net.NumInputs];
+                compiled.ForwardPass(net);
+                sum -= net.Outputs[0];
+            }
+            long kernel = System.nanoTime() - start;
+            System.out.println("ns per pass: Neural.ForwardPass " + (double) loops / passes +
+                    ", compiled " + (double) kernel / passes);
+            Sink = sum;
+        }
+    }
+}
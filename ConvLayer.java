@@ -0,0 +1,256 @@
+/**
+ * The ConvLayer class is a 2D convolution layer with a ReLU activation and
+ * optional max pooling, for grid shaped inputs like testHand's character
+ * grid. Activations are stored position-major: the value of channel c at
+ * row y, column x of a height x width grid is at (y * width + x) * channels + c,
+ * so a one channel grid is the flat input vector testHand already uses.
+ *
+ * The convolution is computed as im2col plus a matrix product. Every
+ * output position copies its Kernel x Kernel x InChannels input patch into
+ * one row of a column matrix, and the rows are multiplied by
+ * K[Kernel * Kernel * InChannels][Filters] with the blocked Neural.MatMul
+ * kernel. Backpropagation uses the same column matrix for the kernel
+ * gradient and scatters the input deltas back with col2im.
+ *
+ * The forward and backward methods keep no per-case state in the layer;
+ * the caller passes the scratch arrays (see NewCols, NewPre, NewArgMax),
+ * so several threads can run one layer.
+ */
+class ConvLayer extends Object {
+
+    // Cases per block of the im2col matrix product:
+    public static final int BLOCK = 32;
+
+    public int InChannels;
+    public int InHeight;
+    public int InWidth;
+    public int Filters;
+    public int Kernel;
+    public int Pad;
+    public int Pool; // side of the max pooling window (1: no pooling)
+
+    public int OutHeight;  // convolution output, before pooling
+    public int OutWidth;
+    public int PoolHeight; // layer output, after pooling
+    public int PoolWidth;
+
+    // Kernels, one column per filter, and one bias per filter:
+    public double K[][];
+    public double Bias[];
+    // Gradients for an Optimizer, allocated on first use (see Backward):
+    protected double GK[][] = null;
+    protected double GBias[][] = null;
+
+    /**
+     * Creates a convolution layer with zero kernels (see Randomize).
+     *
+     * @param in_channels The number of input channels.
+     * @param in_height   The number of input rows.
+     * @param in_width    The number of input columns.
+     * @param filters     The number of filters (output channels).
+     * @param kernel      The side of the square kernels.
+     * @param pad         Zero padding on every side (kernel / 2 keeps the size).
+     * @param pool        The side of the max pooling window, 1 for none.
+     */
+    ConvLayer(int in_channels, int in_height, int in_width,
+              int filters, int kernel, int pad, int pool) {
+        InChannels = in_channels;
+        InHeight = in_height;
+        InWidth = in_width;
+        Filters = filters;
+        Kernel = kernel;
+        Pad = pad;
+        Pool = Math.max(1, pool);
+        OutHeight = InHeight + 2 * Pad - Kernel + 1;
+        OutWidth = InWidth + 2 * Pad - Kernel + 1;
+        if (OutHeight < 1 || OutWidth < 1)
+            throw new IllegalArgumentException("convolution kernel larger than the padded input");
+        PoolHeight = Math.max(1, OutHeight / Pool);
+        PoolWidth = Math.max(1, OutWidth / Pool);
+        K = new double[Rows()][Filters];
+        Bias = new double[Filters];
+    }
+
+    /**
+     * Initializes the kernels (He scaling suits the ReLU) and zeroes the biases.
+     */
+    public void Randomize(long seed, int layer) {
+        new WeightInit(WeightInit.HE, seed).Fill(K, 2 + layer, Rows(), Filters);
+        java.util.Arrays.fill(Bias, 0.0);
+    }
+
+    public int InputSize() {
+        return InHeight * InWidth * InChannels;
+    }
+
+    public int OutputSize() {
+        return PoolHeight * PoolWidth * Filters;
+    }
+
+    // Rows of K: the values in one input patch.
+    public int Rows() {
+        return Kernel * Kernel * InChannels;
+    }
+
+    // Convolution output positions.
+    public int Positions() {
+        return OutHeight * OutWidth;
+    }
+
+    public double[] NewCols() {
+        return new double[Positions() * Rows()];
+    }
+
+    public double[] NewPre() {
+        return new double[Positions() * Filters];
+    }
+
+    public int[] NewArgMax() {
+        return new int[OutputSize()];
+    }
+
+    /**
+     * Copies the input patch of every output position into a row of cols.
+     */
+    public void Im2Col(double in[], int base, double cols[]) {
+        int j = 0;
+        for (int oy = 0; oy < OutHeight; oy++) {
+            for (int ox = 0; ox < OutWidth; ox++) {
+                for (int ky = 0; ky < Kernel; ky++) {
+                    int iy = oy + ky - Pad;
+                    for (int kx = 0; kx < Kernel; kx++) {
+                        int ix = ox + kx - Pad;
+                        if (iy < 0 || iy >= InHeight || ix < 0 || ix >= InWidth) {
+                            for (int c = 0; c < InChannels; c++)
+                                cols[j++] = 0.0;
+                        } else {
+                            System.arraycopy(in, base + (iy * InWidth + ix) * InChannels, cols, j, InChannels);
+                            j += InChannels;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the layer on one case.
+     *
+     * @param in       The input activations.
+     * @param base     The index of the case's first input in in.
+     * @param out      Receives the output activations (OutputSize values).
+     * @param out_base The index of the first output in out.
+     * @param cols     Scratch: receives the column matrix.
+     * @param pre      Scratch: receives the convolution outputs after the ReLU.
+     * @param arg_max  Scratch: receives the index in pre of each output.
+     */
+    public void Forward(double in[], int base, double out[], int out_base,
+                        double cols[], double pre[], int arg_max[]) {
+        Im2Col(in, base, cols);
+        int positions = Positions();
+        for (int p = 0; p < positions; p++)
+            System.arraycopy(Bias, 0, pre, p * Filters, Filters);
+        Neural.MatMul(cols, K, pre, positions, Rows(), Filters, KernelTuner.FORWARD_BLOCKED, BLOCK);
+        for (int j = 0; j < pre.length; j++)
+            if (pre[j] < 0.0) pre[j] = 0.0;
+        for (int py = 0; py < PoolHeight; py++) {
+            for (int px = 0; px < PoolWidth; px++) {
+                for (int f = 0; f < Filters; f++) {
+                    int best = ((py * Pool) * OutWidth + px * Pool) * Filters + f;
+                    for (int dy = 0; dy < Pool; dy++) {
+                        for (int dx = 0; dx < Pool; dx++) {
+                            int j = ((py * Pool + dy) * OutWidth + px * Pool + dx) * Filters + f;
+                            if (pre[j] > pre[best]) best = j;
+                        }
+                    }
+                    int o = (py * PoolWidth + px) * Filters + f;
+                    arg_max[o] = best;
+                    out[out_base + o] = pre[best];
+                }
+            }
+        }
+    }
+
+    /**
+     * Propagates output deltas back through the layer and updates the
+     * kernels and biases. Deltas follow the sign convention of Neural
+     * (target - output direction), so plain SGD adds rate * delta * input.
+     * With an optimizer the summed gradients are handed to
+     * Optimizer.UpdateParams instead, under keys key (kernels) and key + 1 (biases).
+     *
+     * @param d_out     The deltas of the outputs (OutputSize values).
+     * @param cols      The column matrix from Forward.
+     * @param pre       The convolution outputs from Forward.
+     * @param arg_max   The pooling choices from Forward.
+     * @param rate      The step size of plain SGD.
+     * @param optimizer The update rule, or null for plain SGD.
+     * @param key       The optimizer state key of the kernels.
+     * @param d_in      Receives the deltas of the inputs, or null if not needed.
+     * @param d_pre     Scratch (Positions * Filters values).
+     */
+    public void Backward(double d_out[], double cols[], double pre[], int arg_max[],
+                         double rate, Optimizer optimizer, int key,
+                         double d_in[], double d_pre[]) {
+        java.util.Arrays.fill(d_pre, 0.0);
+        for (int o = 0; o < arg_max.length; o++)
+            d_pre[arg_max[o]] += d_out[o];
+        for (int j = 0; j < d_pre.length; j++)
+            if (pre[j] <= 0.0) d_pre[j] = 0.0; // ReLU
+        int rows = Rows();
+        if (d_in != null) {
+            // col2im: every patch value sends K * delta back to its input:
+            java.util.Arrays.fill(d_in, 0, InputSize(), 0.0);
+            for (int oy = 0; oy < OutHeight; oy++) {
+                for (int ox = 0; ox < OutWidth; ox++) {
+                    int p = oy * OutWidth + ox, r = 0;
+                    for (int ky = 0; ky < Kernel; ky++) {
+                        int iy = oy + ky - Pad;
+                        for (int kx = 0; kx < Kernel; kx++) {
+                            int ix = ox + kx - Pad;
+                            boolean inside = iy >= 0 && iy < InHeight && ix >= 0 && ix < InWidth;
+                            for (int c = 0; c < InChannels; c++, r++) {
+                                if (!inside) continue;
+                                double sum = 0.0, row[] = K[r];
+                                for (int f = 0; f < Filters; f++)
+                                    sum += d_pre[p * Filters + f] * row[f];
+                                d_in[(iy * InWidth + ix) * InChannels + c] += sum;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        if (optimizer == null) {
+            Accumulate(cols, d_pre, rate, K, Bias);
+            return;
+        }
+        if (GK == null) {
+            GK = new double[rows][Filters];
+            GBias = new double[1][Filters];
+        }
+        for (double row[] : GK) java.util.Arrays.fill(row, 0.0);
+        java.util.Arrays.fill(GBias[0], 0.0);
+        Accumulate(cols, d_pre, 1.0, GK, GBias[0]);
+        optimizer.UpdateParams(key, K, GK);
+        optimizer.UpdateParams(key + 1, new double[][]{Bias}, GBias);
+    }
+
+    // Adds rate times the kernel and bias gradients (the column matrix
+    // transposed times the deltas) to k and bias:
+    private void Accumulate(double cols[], double d_pre[], double rate,
+                            double k[][], double bias[]) {
+        int rows = Rows(), positions = Positions();
+        for (int p = 0; p < positions; p++) {
+            int d_base = p * Filters, c_base = p * rows;
+            for (int r = 0; r < rows; r++) {
+                double x = rate * cols[c_base + r];
+                if (x == 0.0) continue;
+                double row[] = k[r];
+                for (int f = 0; f < Filters; f++)
+                    row[f] += x * d_pre[d_base + f];
+            }
+            for (int f = 0; f < Filters; f++)
+                bias[f] += rate * d_pre[d_base + f];
+        }
+    }
+}
@@ -0,0 +1,283 @@
+import java.util.stream.IntStream;
+
+/**
+ * The ConvNeural class puts a stack of convolution layers (ConvLayer) in
+ * front of a Neural network. The convolution layers turn an input grid
+ * into feature maps. Their flattened output is the input layer of the
+ * dense network (Dense), which does the classification, so the number of
+ * parameters grows with the number of filters rather than with the square
+ * of the grid resolution.
+ *
+ * Training runs the convolution layers forward, lets Dense backpropagate
+ * and update its own weights as Neural.Train does (so WeightOptimizer,
+ * SoftmaxOutput and the pruning masks all apply), then carries the deltas
+ * of Dense's inputs back through the convolution layers, whose kernels and
+ * biases are updated by Dense.WeightOptimizer too (plain SGD at
+ * Dense.LearningRate when it is null).
+ *
+ * Models with convolution layers are stored in NNfile (and ModelArchive)
+ * files; their training cases hold the raw input grids.
+ */
+public class ConvNeural extends Object {
+
+    public ConvLayer Layers[];
+    public Neural Dense;
+
+    // The input grid; set it and call ForwardPass() (results in Dense.Outputs):
+    public double Inputs[];
+
+    // Per layer activations and scratch for the single case path:
+    protected double Acts[][];   // Acts[0] == Inputs, Acts[l + 1] == output of layer l
+    protected double Deltas[][]; // deltas of Acts[l]
+    protected double Cols[][];
+    protected double Pre[][];
+    protected double DPre[][];
+    protected int ArgMax[][];
+
+    /**
+     * Creates a network with one 'same' padded convolution layer (with
+     * optional pooling) over a one channel grid, followed by a dense network.
+     *
+     * @param height  The number of grid rows.
+     * @param width   The number of grid columns.
+     * @param filters The number of convolution filters.
+     * @param kernel  The side of the (odd sized) kernels.
+     * @param pool    The side of the max pooling window, 1 for none.
+     * @param hidden  The number of hidden neurons of the dense network.
+     * @param outputs The number of output neurons.
+     */
+    public ConvNeural(int height, int width, int filters, int kernel, int pool,
+                      int hidden, int outputs) {
+        this(new ConvLayer[]{new ConvLayer(1, height, width, filters, kernel, kernel / 2, pool)},
+                hidden, outputs);
+    }
+
+    /**
+     * Creates a network from a stack of convolution layers (each layer's
+     * output grid must be the next one's input grid) and a new dense network.
+     */
+    public ConvNeural(ConvLayer layers[], int hidden, int outputs) {
+        Layers = layers;
+        long seed = WeightInit.RandomSeed();
+        for (int l = 0; l < Layers.length; l++)
+            Layers[l].Randomize(seed, l);
+        Dense = new Neural(FeatureSize(), hidden, outputs);
+        Init();
+    }
+
+    /**
+     * Creates a network from a file with convolution layers.
+     *
+     * @param file The network configuration, weights and training cases.
+     */
+    public ConvNeural(NNfile file) {
+        if (file.Convs == null || file.Convs.length == 0)
+            throw new IllegalArgumentException("NNfile has no convolution layers");
+        Layers = file.Convs;
+        if (file.WeightFlag == 0) {
+            long seed = WeightInit.RandomSeed();
+            for (int l = 0; l < Layers.length; l++)
+                Layers[l].Randomize(seed, l);
+        }
+        Dense = new Neural(file, true);
+        // the training grids are needed on the heap for the convolution layers:
+        if (Dense.InputTraining == null) Dense.LoadTrainingCases();
+        Init();
+    }
+
+    public ConvNeural(String file_name) {
+        this(new NNfile(file_name));
+    }
+
+    private void Init() {
+        int n = Layers.length;
+        for (int l = 0; l + 1 < n; l++) {
+            if (Layers[l].OutputSize() != Layers[l + 1].InputSize())
+                throw new IllegalArgumentException("convolution layer " + l +
+                        " output does not match the input of layer " + (l + 1));
+        }
+        if (FeatureSize() != Dense.NumInputs)
+            throw new IllegalArgumentException("convolution output does not match the dense inputs");
+        Acts = new double[n + 1][];
+        Deltas = new double[n + 1][];
+        Cols = new double[n][];
+        Pre = new double[n][];
+        DPre = new double[n][];
+        ArgMax = new int[n][];
+        Acts[0] = Inputs = new double[Layers[0].InputSize()];
+        Deltas[0] = null;
+        for (int l = 0; l < n; l++) {
+            Acts[l + 1] = new double[Layers[l].OutputSize()];
+            Deltas[l + 1] = new double[Layers[l].OutputSize()];
+            Cols[l] = Layers[l].NewCols();
+            Pre[l] = Layers[l].NewPre();
+            DPre[l] = Layers[l].NewPre();
+            ArgMax[l] = Layers[l].NewArgMax();
+        }
+    }
+
+    /**
+     * Returns the number of values in one input grid.
+     */
+    public int InputSize() {
+        return Layers[0].InputSize();
+    }
+
+    /**
+     * Returns the number of features the convolution layers give the dense network.
+     */
+    public int FeatureSize() {
+        return Layers[Layers.length - 1].OutputSize();
+    }
+
+    /**
+     * Performs a forward pass on the grid in Inputs; the results are in
+     * Dense.Outputs (and the features in Dense.Inputs).
+     */
+    public void ForwardPass() {
+        RunLayers(Inputs, 0);
+        System.arraycopy(Acts[Layers.length], 0, Dense.Inputs, 0, Dense.NumInputs);
+        Dense.ForwardPass();
+    }
+
+    // Runs the convolution layers on one case, using the single case scratch:
+    private void RunLayers(double ins[], int base) {
+        double in[] = ins;
+        for (int l = 0; l < Layers.length; l++) {
+            Layers[l].Forward(in, l == 0 ? base : 0, Acts[l + 1], 0, Cols[l], Pre[l], ArgMax[l]);
+            in = Acts[l + 1];
+        }
+    }
+
+    /**
+     * Computes the features of a batch of grids, in parallel chunks. Like
+     * Neural.ForwardPass(ins, outs, n) it does not touch the single case
+     * arrays, so it may run in several threads while nothing is training.
+     *
+     * @param ins       The grids, num_cases * InputSize() values.
+     * @param num_cases The number of cases.
+     * @return The features, num_cases * FeatureSize() values.
+     */
+    public double[] Features(double ins[], int num_cases) {
+        int in_size = InputSize(), size = FeatureSize(), chunk = 64;
+        double features[] = new double[num_cases * size];
+        IntStream.range(0, (num_cases + chunk - 1) / chunk).parallel().forEach(c -> {
+            int n = Layers.length;
+            double acts[][] = new double[n][];
+            double cols[][] = new double[n][], pre[][] = new double[n][];
+            int arg_max[][] = new int[n][];
+            for (int l = 0; l < n; l++) {
+                acts[l] = new double[Layers[l].OutputSize()];
+                cols[l] = Layers[l].NewCols();
+                pre[l] = Layers[l].NewPre();
+                arg_max[l] = Layers[l].NewArgMax();
+            }
+            for (int k = c * chunk; k < Math.min(num_cases, (c + 1) * chunk); k++) {
+                double in[] = ins;
+                int base = k * in_size;
+                for (int l = 0; l < n; l++) {
+                    double out[] = l == n - 1 ? features : acts[l];
+                    int out_base = l == n - 1 ? k * size : 0;
+                    Layers[l].Forward(in, base, out, out_base, cols[l], pre[l], arg_max[l]);
+                    in = acts[l];
+                    base = 0;
+                }
+            }
+        });
+        return features;
+    }
+
+    /**
+     * Performs a forward pass for a batch of grids without touching the
+     * single case arrays.
+     *
+     * @param ins       The grids, num_cases * InputSize() values.
+     * @param outs      Receives the outputs, num_cases * Dense.NumOutputs values.
+     * @param num_cases The number of cases.
+     */
+    public void ForwardPass(double ins[], double outs[], int num_cases) {
+        Dense.ForwardPass(Features(ins, num_cases), outs, num_cases);
+    }
+
+    /**
+     * Trains the training cases the network was loaded with for one epoch.
+     */
+    public double Train() {
+        return Train(Dense.InputTraining, Dense.OutputTraining, Dense.TrainingWeights, Dense.NumTraining);
+    }
+
+    /**
+     * Trains all layers with backpropagation for one epoch, as Neural.Train
+     * does. Cases marked in Dense.IgnoreTraining are skipped.
+     *
+     * @param ins       The input grids, num_cases * InputSize() values.
+     * @param outs      The output training data.
+     * @param num_cases The number of training cases.
+     * @return The error summed over the cases, as Neural.Train reports it.
+     */
+    public double Train(double ins[], double outs[], int num_cases) {
+        return Train(ins, outs, null, num_cases);
+    }
+
+    /**
+     * Trains on cases with integer weights, as Neural.Train(ins, outs, weights, num_cases).
+     */
+    public double Train(double ins[], double outs[], int weights[], int num_cases) {
+        int n = Layers.length, in_size = InputSize(), no = Dense.NumOutputs;
+        double error = 0.0;
+        double targets[] = Dense.SoftmaxOutput ? new double[no] : null;
+        double features[] = Acts[n];
+        double d_features[] = Deltas[n];
+        Dense.BeginEpoch();
+        for (int example = 0; example < num_cases; example++) {
+            if (Dense.IgnoreTraining != null && Dense.IgnoreTraining[example]) continue;
+            RunLayers(ins, example * in_size);
+            double case_error = Dense.Backpropagate(features, 0, outs, example * no, targets);
+            error += weights == null ? case_error : Dense.ScaleDeltas(weights[example]) * case_error;
+            // deltas of the dense inputs, before the dense weights change:
+            for (int i = 0; i < Dense.NumInputs; i++) {
+                double sum = 0.0, row[] = Dense.W1[i];
+                for (int h = 0; h < Dense.NumHidden; h++)
+                    sum += Dense.hidden_errors[h] * row[h];
+                d_features[i] = sum;
+            }
+            Dense.ApplyUpdate();
+            for (int l = n - 1; l >= 0; l--)
+                Layers[l].Backward(Deltas[l + 1], Cols[l], Pre[l], ArgMax[l],
+                        Dense.LearningRate, Dense.WeightOptimizer, 2 + 2 * l,
+                        l > 0 ? Deltas[l] : null, DPre[l]);
+        }
+        Dense.EndEpoch();
+        return error;
+    }
+
+    /**
+     * Saves the convolution layers and the dense network to a file.
+     */
+    public void Save(String output_file) {
+        if (Dense.NeuralFile == null)
+            Dense.NeuralFile = new NNfile(Dense.NumInputs, Dense.NumHidden, Dense.NumOutputs);
+        Dense.NeuralFile.Convs = Layers;
+        Dense.Save(output_file);
+    }
+
+    public static void main(String argv[]) {
+        if (argv.length < 1) {
+            System.out.println("usage: java ConvNeural <file with convolution layers> [epochs] [output file]");
+            return;
+        }
+        ConvNeural net = new ConvNeural(argv[0]);
+        int epochs = argv.length > 1 ? Integer.parseInt(argv[1]) : 1000;
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            double error = net.Train();
+            if ((epoch % 10) == 0)
+                System.out.println("Output error for iteration " + epoch + " =" + error);
+            if (error < 0.1) break;
+        }
+        Evaluation result = new Evaluator(net.Dense).Evaluate(
+                net.Features(net.Dense.InputTraining, net.Dense.NumTraining),
+                net.Dense.OutputTraining, net.Dense.NumTraining);
+        System.out.print(result.Report(null));
+        if (argv.length > 2) net.Save(argv[2]);
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * The DoubleStore interface is the storage behind NNfile's header, special
+ * data and training cases: a growable array of doubles with long indices.
+ * HeapStore keeps the values in a double array on the Java heap; SegmentStore
+ * (in jdk22/, outside the default build) keeps them in off-heap memory or in
+ * a memory mapped file, for training sets larger than the heap. NNfile.NewStore
+ * chooses between them.
+ */
+interface DoubleStore extends AutoCloseable {
+
+    /**
+     * Returns the number of values the store holds.
+     */
+    long Length();
+
+    double Get(long index);
+
+    void Set(long index, double x);
+
+    /**
+     * Copies n values, starting at index, into dst[off .. off + n - 1].
+     */
+    void Read(long index, double dst[], int off, int n);
+
+    /**
+     * Copies src[off .. off + n - 1] into the store, starting at index.
+     */
+    void Write(long index, double src[], int off, int n);
+
+    /**
+     * Moves n values from index from to index to; the ranges may overlap.
+     */
+    void Move(long from, long to, long n);
+
+    /**
+     * Grows the store to hold at least size values, keeping its contents.
+     */
+    void Grow(long size);
+
+    /**
+     * Releases the storage; the store must not be used afterwards.
+     */
+    void close();
+}
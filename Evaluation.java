@@ -0,0 +1,87 @@
+/**
+ * The Evaluation class holds the metrics of a network over a set of
+ * cases: a confusion matrix (target class x predicted class, where a
+ * class is the index of the largest value), accuracy, per-class precision
+ * and recall, and the mean loss per case (cross-entropy for softmax
+ * outputs, otherwise the summed squared error over the output neurons).
+ */
+class Evaluation extends Object {
+
+    public int NumClasses;
+    public int Confusion[][];
+    public int NumCases = 0;
+    public int Correct = 0;
+    public double LossSum = 0.0;
+
+    Evaluation(int num_classes) {
+        NumClasses = num_classes;
+        Confusion = new int[num_classes][num_classes];
+    }
+
+    /**
+     * Adds the counts of another evaluation (of the same classes) to this one.
+     */
+    public void Merge(Evaluation other) {
+        for (int t = 0; t < NumClasses; t++)
+            for (int p = 0; p < NumClasses; p++)
+                Confusion[t][p] += other.Confusion[t][p];
+        NumCases += other.NumCases;
+        Correct += other.Correct;
+        LossSum += other.LossSum;
+    }
+
+    public double Accuracy() {
+        return (double) Correct / Math.max(1, NumCases);
+    }
+
+    public double Loss() {
+        return LossSum / Math.max(1, NumCases);
+    }
+
+    /**
+     * Returns the fraction of cases predicted as class c that are class c.
+     */
+    public double Precision(int c) {
+        int predicted = 0;
+        for (int t = 0; t < NumClasses; t++)
+            predicted += Confusion[t][c];
+        return predicted == 0 ? 0.0 : (double) Confusion[c][c] / predicted;
+    }
+
+    /**
+     * Returns the fraction of cases of class c that are predicted as class c.
+     */
+    public double Recall(int c) {
+        int actual = 0;
+        for (int p = 0; p < NumClasses; p++)
+            actual += Confusion[c][p];
+        return actual == 0 ? 0.0 : (double) Confusion[c][c] / actual;
+    }
+
+    /**
+     * Returns a printable summary.
+     *
+     * @param names The class names, or null to print class numbers.
+     */
+    public String Report(String names[]) {
+        StringBuffer sb = new StringBuffer();
+        sb.append("cases=" + NumCases + " accuracy=" + (100.0 * Accuracy()) +
+                "% loss=" + Loss() + "\n");
+        sb.append("confusion (rows: target, columns: predicted):\n");
+        for (int t = 0; t < NumClasses; t++) {
+            sb.append(Name(names, t) + ":");
+            for (int p = 0; p < NumClasses; p++)
+                sb.append(" " + Confusion[t][p]);
+            sb.append("   precision=" + Round(Precision(t)) + " recall=" + Round(Recall(t)) + "\n");
+        }
+        return sb.toString();
+    }
+
+    private static String Name(String names[], int c) {
+        return names != null && c < names.length ? names[c] : Integer.toString(c);
+    }
+
+    private static String Round(double x) {
+        return Double.toString(Math.round(x * 1000.0) / 1000.0);
+    }
+}
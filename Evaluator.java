@@ -0,0 +1,187 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The Evaluator class scores a network on a set of cases without
+ * changing it. The weights are copied once (while holding the network's
+ * lock, which the GUI and OnlineLearner take while training), so training
+ * may continue during the evaluation; the cases are then scored in
+ * parallel chunks with the batched kernels of Neural and the per-chunk
+ * results are merged into one Evaluation.
+ */
+public class Evaluator extends Object {
+
+    protected Neural Net;
+    public int NumThreads = Runtime.getRuntime().availableProcessors();
+    public int ChunkSize = 256;
+
+    /**
+     * Creates an evaluator for a network.
+     *
+     * @param net The network; it is read, never modified.
+     */
+    public Evaluator(Neural net) {
+        Net = net;
+    }
+
+    /**
+     * Scores a set of cases.
+     *
+     * @param ins       The inputs, num_cases * NumInputs values.
+     * @param outs      The targets, num_cases * NumOutputs values.
+     * @param num_cases The number of cases.
+     * @return The metrics.
+     */
+    public Evaluation Evaluate(double ins[], double outs[], int num_cases) {
+        return Evaluate(ins, outs, null, num_cases);
+    }
+
+    /**
+     * Scores a set of cases with integer weights (see NNfile.Compact); a
+     * case of weight w counts as w cases.
+     *
+     * @param weights The weight of each case, or null for all 1.
+     */
+    public Evaluation Evaluate(double ins[], double outs[], int weights[], int num_cases) {
+        double W1[][], W2[][];
+        synchronized (Net) {
+            W1 = Copy(Net.W1);
+            W2 = Copy(Net.W2);
+        }
+        return Evaluate(W1, W2, ins, outs, weights, num_cases);
+    }
+
+    /**
+     * Scores the training cases of a file a batch at a time, e.g. cases
+     * kept in off-heap storage (see NNfile.TrainingOnHeap).
+     *
+     * @param file The cases, with NumInputs inputs per case.
+     */
+    public Evaluation Evaluate(NNfile file) {
+        double W1[][], W2[][];
+        synchronized (Net) {
+            W1 = Copy(Net.W1);
+            W2 = Copy(Net.W2);
+        }
+        Evaluation result = new Evaluation(Net.NumOutputs);
+        int batch = ChunkSize * NumThreads;
+        double ins[] = new double[batch * Net.NumInputs];
+        double outs[] = new double[batch * Net.NumOutputs];
+        for (int first = 0; first < file.NumTraining; first += batch) {
+            int n = file.GetBatch(first, batch, ins, outs);
+            int weights[] = file.CaseWeights == null ? null
+                    : java.util.Arrays.copyOfRange(file.CaseWeights, first, first + n);
+            result.Merge(Evaluate(W1, W2, ins, outs, weights, n));
+        }
+        return result;
+    }
+
+    private Evaluation Evaluate(double W1[][], double W2[][], double ins[], double outs[],
+                                int weights[], int num_cases) {
+        Evaluation result = new Evaluation(Net.NumOutputs);
+        if (num_cases <= 0) return result;
+        int threads = Math.max(1, Math.min(NumThreads, (num_cases + ChunkSize - 1) / ChunkSize));
+        if (threads == 1) {
+            for (int first = 0; first < num_cases; first += ChunkSize)
+                result.Merge(EvaluateChunk(W1, W2, ins, outs, weights, first,
+                        Math.min(ChunkSize, num_cases - first)));
+            return result;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Evaluation>> tasks = new ArrayList<Callable<Evaluation>>();
+            for (int first = 0; first < num_cases; first += ChunkSize) {
+                final int f = first, n = Math.min(ChunkSize, num_cases - first);
+                tasks.add(() -> EvaluateChunk(W1, W2, ins, outs, weights, f, n));
+            }
+            for (Future<Evaluation> chunk : pool.invokeAll(tasks))
+                result.Merge(chunk.get());
+        } catch (Exception e) {
+            throw new RuntimeException("evaluation failed", e);
+        } finally {
+            pool.shutdown();
+        }
+        return result;
+    }
+
+    /**
+     * Scores the training cases the network was loaded with.
+     */
+    public Evaluation Evaluate() {
+        if (Net.InputTraining == null && Net.NeuralFile != null)
+            return Evaluate(Net.NeuralFile);
+        return Evaluate(Net.InputTraining, Net.OutputTraining, Net.TrainingWeights, Net.NumTraining);
+    }
+
+    private Evaluation EvaluateChunk(double W1[][], double W2[][], double ins[], double outs[],
+                                     int weights[], int first, int n) {
+        int ni = Net.NumInputs, nh = Net.NumHidden, no = Net.NumOutputs;
+        double x[] = new double[n * ni];
+        System.arraycopy(ins, first * ni, x, 0, n * ni);
+        double hidden[] = new double[n * nh];
+        Neural.MatMul(x, W1, hidden, n, ni, nh, Net.ForwardKernel[0], Net.ForwardBlock[0]);
+        for (int j = 0; j < hidden.length; j++)
+            hidden[j] = Neural.ShiftedSigmoid(hidden[j]);
+        double y[] = new double[n * no];
+        Neural.MatMul(hidden, W2, y, n, nh, no, Net.ForwardKernel[1], Net.ForwardBlock[1]);
+
+        Evaluation result = new Evaluation(no);
+        double log_p[] = new double[no];
+        double targets[] = new double[no];
+        for (int k = 0; k < n; k++) {
+            int base = k * no, t_base = (first + k) * no;
+            int weight = weights == null ? 1 : weights[first + k];
+            if (Net.SoftmaxOutput) {
+                Neural.Softmax(y, base, no, log_p);
+                Net.SoftmaxTargets(outs, t_base, targets);
+                for (int o = 0; o < no; o++)
+                    if (targets[o] > 0.0) result.LossSum -= weight * targets[o] * log_p[o];
+            } else {
+                for (int o = 0; o < no; o++) {
+                    y[base + o] = Neural.ShiftedSigmoid(y[base + o]);
+                    double d = outs[t_base + o] - y[base + o];
+                    result.LossSum += weight * d * d;
+                }
+            }
+            int predicted = 0, target = 0;
+            for (int o = 1; o < no; o++) {
+                if (y[base + o] > y[base + predicted]) predicted = o;
+                if (outs[t_base + o] > outs[t_base + target]) target = o;
+            }
+            result.Confusion[target][predicted] += weight;
+            if (predicted == target) result.Correct += weight;
+            result.NumCases += weight;
+        }
+        return result;
+    }
+
+    private static double[][] Copy(double W[][]) {
+        double copy[][] = new double[W.length][];
+        for (int r = 0; r < W.length; r++)
+            copy[r] = W[r].clone();
+        return copy;
+    }
+
+    public static void main(String argv[]) throws Exception {
+        if (argv.length < 1) {
+            System.out.println("usage: java Evaluator <model> [data file]");
+            return;
+        }
+        Neural net, data;
+        try {
+            net = NNtool.LoadModel(argv[0]);
+            data = argv.length > 1 ? NNtool.LoadModel(argv[1]) : net;
+        } catch (FileFormatException e) {
+            System.out.println("Error: " + e.getMessage());
+            return;
+        }
+        Evaluation result = data.InputTraining == null && data.NeuralFile != null
+                ? new Evaluator(net).Evaluate(data.NeuralFile)
+                : new Evaluator(net).Evaluate(data.InputTraining, data.OutputTraining, data.NumTraining);
+        System.out.print(result.Report(null));
+    }
+}
@@ -0,0 +1,9 @@
+/**
+ * The FileFormatException class reports a model or data file that can not be
+ * parsed (see NNfile, IdxDataset and ModelArchive).
+ */
+class FileFormatException extends Exception {
+    public FileFormatException(String str) {
+        super(str);
+    }
+}
@@ -1,4 +1,8 @@
 import java.awt.*;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseMotionAdapter;
 
 /**
  * The GUI class represents a basic graphical user interface window.
@@ -141,15 +145,27 @@ public class GUI extends Frame {
      */
     protected void paintGridCell(Graphics g, int x, int y, int size,
                                  double value, double min, double max) {
-        int index = (int) (((value - min) * (double) NumColors) / (max - min));
-        if (index < 0) index = 0;
-        else if (index > (NumColors - 1)) index = NumColors - 1;
-        g.setColor(colors[index]);
+        g.setColor(cellColor(value, min, max));
         g.fillRect(x, y, size, size);
         g.setColor(Color.black);
         g.drawRect(x, y, size, size);
     }
 
+    /**
+     * Returns the color paintGridCell uses for a value.
+     *
+     * @param value  The value to determine the cell color.
+     * @param min    The minimum value for scaling.
+     * @param max    The maximum value for scaling.
+     * @return The color.
+     */
+    protected Color cellColor(double value, double min, double max) {
+        int index = (int) (((value - min) * (double) NumColors) / (max - min));
+        if (index < 0) index = 0;
+        else if (index > (NumColors - 1)) index = NumColors - 1;
+        return colors[index];
+    }
+
     /**
      * Paints on the double buffer for flicker-free rendering.
      *
@@ -202,6 +218,17 @@ public class GUI extends Frame {
         System.out.println("\n");
     }
 
+    /**
+     * Subclasses may redefine this function:
+     * Called when a key is pressed while the canvas has the focus.
+     *
+     * @param e The key event (see KeyEvent.getKeyChar and getKeyCode).
+     * @return True if the key was handled (the canvas is then repainted).
+     */
+    public boolean doKeyDown(KeyEvent e) {
+        return false;
+    }
+
     // Utility to get the input text field:
 
     /**
@@ -321,6 +348,26 @@ public class GUI extends Frame {
         Image im;
         public GUI parent;
 
+        /**
+         * Creates the canvas and forwards its mouse drags and key presses to
+         * the containing app. (Once a listener is registered, AWT no longer
+         * delivers old style Event callbacks to the canvas.)
+         */
+        GUICanvas() {
+            addMouseMotionListener(new MouseMotionAdapter() {
+                public void mouseDragged(MouseEvent e) {
+                    // Call the containing app's mouse handling function:
+                    parent.doMouseDown(e.getX(), e.getY());
+                    requestFocus(); // so that doKeyDown gets the keys
+                }
+            });
+            addKeyListener(new KeyAdapter() {
+                public void keyPressed(KeyEvent e) {
+                    if (parent.doKeyDown(e)) repaint();
+                }
+            });
+        }
+
         /**
          * Initializes the GUICanvas for double buffering.
          */
@@ -349,19 +396,5 @@ public class GUI extends Frame {
                 g.drawImage(im, 0, 0, this);
             }
         }
-
-        /**
-         * Handles mouse drag events on the canvas.
-         *
-         * @param evt The event object.
-         * @param x   The x-coordinate of the mouse drag event.
-         * @param y   The y-coordinate of the mouse drag event.
-         * @return False (indicating the event was not consumed).
-         */
-        public boolean mouseDrag(Event evt, int x, int y) {
-            // Call the containing app's mouse handling function:
-            parent.doMouseDown(x, y);
-            return false;
-        }
     }
 }
@@ -0,0 +1,54 @@
+/**
+ * The HeapStore class is the default DoubleStore: the values are kept in a
+ * double array on the Java heap, so at most Integer.MAX_VALUE of them.
+ */
+class HeapStore extends Object implements DoubleStore {
+
+    private double Values[];
+
+    HeapStore(long size) {
+        Values = new double[Size(size)];
+    }
+
+    public long Length() {
+        return Values.length;
+    }
+
+    public double Get(long index) {
+        return Values[(int) index];
+    }
+
+    public void Set(long index, double x) {
+        Values[(int) index] = x;
+    }
+
+    public void Read(long index, double dst[], int off, int n) {
+        System.arraycopy(Values, (int) index, dst, off, n);
+    }
+
+    public void Write(long index, double src[], int off, int n) {
+        System.arraycopy(src, off, Values, (int) index, n);
+    }
+
+    public void Move(long from, long to, long n) {
+        System.arraycopy(Values, (int) from, Values, (int) to, (int) n);
+    }
+
+    public void Grow(long size) {
+        if (size > Values.length) {
+            long doubled = Math.min(2L * Values.length, Integer.MAX_VALUE - 8);
+            Values = java.util.Arrays.copyOf(Values, Size(Math.max(size, doubled)));
+        }
+    }
+
+    public void close() {
+        Values = null;
+    }
+
+    private static int Size(long size) {
+        if (size > Integer.MAX_VALUE - 8)
+            throw new OutOfMemoryError("training data too large for the heap store " +
+                    "(see NNfile.NewStore for off-heap storage)");
+        return (int) size;
+    }
+}
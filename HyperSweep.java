@@ -0,0 +1,270 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * One point of a hyperparameter search, together with the network trained
+ * for it and the results so far.
+ */
+class SweepConfig extends Object {
+    public int NumHidden;
+    public double Rate;
+    public int Epochs;      // epoch budget for this configuration
+    public long Seed;
+
+    public Neural Net = null;
+    public int EpochsRun = 0;
+    public double Error = Double.MAX_VALUE; // error of the last epoch run
+    public boolean Stopped = false;         // dropped by successive halving
+
+    SweepConfig(int num_hidden, double rate, int epochs, long seed) {
+        NumHidden = num_hidden;
+        Rate = rate;
+        Epochs = epochs;
+        Seed = seed;
+    }
+
+    public String toString() {
+        return "hidden=" + NumHidden + " rate=" + Rate + " seed=" + Seed +
+                " epochs=" + EpochsRun + "/" + Epochs + " error=" + Error +
+                (Stopped ? " (stopped)" : "");
+    }
+}
+
+/**
+ * The HyperSweep class trains many independent Neural networks
+ * concurrently on one shared set of training cases and ranks them.
+ * The training arrays are only read, so every worker uses them directly;
+ * each network owns its weights and scratch arrays.
+ * RunHalving implements successive halving: all configurations get a
+ * small epoch budget, the best 1/eta are kept and their budget is
+ * multiplied by eta, until one rung is left or the budgets are used up.
+ */
+public class HyperSweep extends Object {
+
+    protected double Ins[];
+    protected double Outs[];
+    // The weight of each case (see NNfile.Compact), or null for all 1:
+    protected int Weights[];
+    protected int NumCases;
+    protected int NumInputs;
+    protected int NumOutputs;
+
+    public int NumThreads;
+    // Stop training a configuration once its epoch error drops below this:
+    public double TargetError = 0.1;
+    // WeightInit scheme for the networks:
+    public int InitScheme = WeightInit.UNIFORM;
+
+    public List<SweepConfig> Configs = new ArrayList<SweepConfig>();
+
+    /**
+     * Creates a sweep over a shared set of training cases.
+     *
+     * @param ins         The input training data (read only).
+     * @param outs        The output training data (read only).
+     * @param num_cases   The number of training cases.
+     * @param num_inputs  The number of input neurons.
+     * @param num_outputs The number of output neurons.
+     * @param num_threads The number of networks trained at the same time.
+     */
+    public HyperSweep(double ins[], double outs[], int num_cases,
+                      int num_inputs, int num_outputs, int num_threads) {
+        this(ins, outs, null, num_cases, num_inputs, num_outputs, num_threads);
+    }
+
+    /**
+     * Creates a sweep over training cases with integer weights, which each
+     * network trains on with Neural.Train(ins, outs, weights, num_cases).
+     *
+     * @param weights The weight of each case (read only), or null for all 1.
+     */
+    public HyperSweep(double ins[], double outs[], int weights[], int num_cases,
+                      int num_inputs, int num_outputs, int num_threads) {
+        Ins = ins;
+        Outs = outs;
+        Weights = weights;
+        NumCases = num_cases;
+        NumInputs = num_inputs;
+        NumOutputs = num_outputs;
+        NumThreads = Math.max(1, num_threads);
+    }
+
+    /**
+     * Adds every combination of the given values to the search.
+     */
+    public void AddGrid(int hidden[], double rates[], int epochs[], long seeds[]) {
+        for (int h : hidden)
+            for (double r : rates)
+                for (int e : epochs)
+                    for (long s : seeds)
+                        Configs.add(new SweepConfig(h, r, e, s));
+    }
+
+    /**
+     * Adds randomly sampled configurations to the search. Learning rates
+     * are sampled uniformly on a log scale.
+     *
+     * @param count The number of configurations to add.
+     * @param seed  Seed for sampling (the network seeds are sampled too).
+     */
+    public void AddRandom(int count, int min_hidden, int max_hidden,
+                          double min_rate, double max_rate, int epochs, long seed) {
+        Random random = new Random(seed);
+        double log_min = Math.log(min_rate), log_max = Math.log(max_rate);
+        for (int k = 0; k < count; k++) {
+            int h = min_hidden + random.nextInt(max_hidden - min_hidden + 1);
+            double r = Math.exp(log_min + random.nextDouble() * (log_max - log_min));
+            Configs.add(new SweepConfig(h, r, epochs, random.nextLong()));
+        }
+    }
+
+    /**
+     * Trains every configuration for its full epoch budget.
+     *
+     * @return The configurations, best first.
+     */
+    public List<SweepConfig> Run() {
+        ExecutorService pool = Executors.newFixedThreadPool(NumThreads);
+        try {
+            TrainAll(pool, Configs, Integer.MAX_VALUE);
+        } finally {
+            pool.shutdown();
+        }
+        return Ranked();
+    }
+
+    /**
+     * Trains the configurations with successive halving.
+     *
+     * @param min_epochs The epoch budget of the first rung.
+     * @param eta        The fraction 1/eta of configurations kept per rung.
+     * @return The configurations, best first.
+     */
+    public List<SweepConfig> RunHalving(int min_epochs, int eta) {
+        eta = Math.max(2, eta);
+        ExecutorService pool = Executors.newFixedThreadPool(NumThreads);
+        try {
+            List<SweepConfig> alive = new ArrayList<SweepConfig>(Configs);
+            int budget = Math.max(1, min_epochs);
+            while (true) {
+                TrainAll(pool, alive, budget);
+                alive.sort(ByError);
+                boolean budgets_left = false;
+                for (SweepConfig c : alive)
+                    if (c.EpochsRun < c.Epochs && c.Error >= TargetError) budgets_left = true;
+                if (alive.size() <= 1 || !budgets_left) break;
+                int keep = Math.max(1, (alive.size() + eta - 1) / eta);
+                for (int k = keep; k < alive.size(); k++)
+                    alive.get(k).Stopped = true;
+                alive = new ArrayList<SweepConfig>(alive.subList(0, keep));
+                budget = budget > Integer.MAX_VALUE / eta ? Integer.MAX_VALUE : budget * eta;
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return Ranked();
+    }
+
+    /**
+     * Returns all configurations that have been run, best first; configurations
+     * stopped by successive halving come after the ones that finished.
+     */
+    public List<SweepConfig> Ranked() {
+        List<SweepConfig> ranked = new ArrayList<SweepConfig>(Configs);
+        ranked.sort(Comparator.comparing((SweepConfig c) -> c.Stopped).thenComparing(ByError));
+        return ranked;
+    }
+
+    /**
+     * Returns a printable ranking of all configurations.
+     */
+    public String Report() {
+        StringBuffer sb = new StringBuffer();
+        List<SweepConfig> ranked = Ranked();
+        for (int k = 0; k < ranked.size(); k++)
+            sb.append((k + 1) + ". " + ranked.get(k) + "\n");
+        return sb.toString();
+    }
+
+    /**
+     * Saves the best network, with the training cases, through NNfile.
+     *
+     * @param output_file The name of the file to write.
+     */
+    public void SaveBest(String output_file) {
+        List<SweepConfig> ranked = Ranked();
+        if (ranked.isEmpty() || ranked.get(0).Net == null) {
+            System.out.println("Error: no trained network in HyperSweep::SaveBest");
+            return;
+        }
+        Neural best = ranked.get(0).Net;
+        best.NeuralFile = new NNfile(NumInputs, best.NumHidden, NumOutputs);
+        double in[] = new double[NumInputs];
+        double out[] = new double[NumOutputs];
+        for (int k = 0; k < NumCases; k++) {
+            System.arraycopy(Ins, k * NumInputs, in, 0, NumInputs);
+            System.arraycopy(Outs, k * NumOutputs, out, 0, NumOutputs);
+            best.NeuralFile.AddTraining(in, out);
+        }
+        if (Weights != null) best.NeuralFile.CaseWeights = Weights.clone();
+        best.Save(output_file);
+    }
+
+    private static final Comparator<SweepConfig> ByError =
+            Comparator.comparingDouble((SweepConfig c) -> c.Error);
+
+    // Trains each configuration until it has run max_epochs epochs in total
+    // (or its own budget, or reaches TargetError):
+    private void TrainAll(ExecutorService pool, List<SweepConfig> configs, int max_epochs) {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (SweepConfig c : configs) {
+            tasks.add(() -> {
+                TrainConfig(c, max_epochs);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks))
+                f.get();
+        } catch (Exception e) {
+            throw new RuntimeException("HyperSweep training failed", e);
+        }
+    }
+
+    private void TrainConfig(SweepConfig c, int max_epochs) {
+        if (c.Net == null) {
+            c.Net = new Neural(NumInputs, c.NumHidden, NumOutputs);
+            c.Net.randomizeWeights(InitScheme, c.Seed);
+            c.Net.LearningRate = c.Rate;
+        }
+        int limit = Math.min(c.Epochs, max_epochs);
+        while (c.EpochsRun < limit && c.Error >= TargetError) {
+            c.Error = c.Net.Train(Ins, Outs, Weights, NumCases);
+            c.EpochsRun++;
+        }
+    }
+
+    public static void main(String argv[]) {
+        if (argv.length < 2) {
+            System.out.println("usage: java HyperSweep <training file> <output file> [threads]");
+            return;
+        }
+        int threads = argv.length > 2 ? Integer.parseInt(argv[2])
+                : Runtime.getRuntime().availableProcessors();
+        Neural data = new Neural(argv[0]);
+        if (data.InputTraining == null) data.LoadTrainingCases(); // from off-heap storage
+        HyperSweep sweep = new HyperSweep(data.InputTraining, data.OutputTraining,
+                data.TrainingWeights, data.NumTraining, data.NumInputs, data.NumOutputs, threads);
+        sweep.AddGrid(new int[]{5, 10, 20, 40}, new double[]{0.1, 0.5, 1.0},
+                new int[]{3000}, new long[]{1, 2});
+        sweep.RunHalving(50, 3);
+        System.out.print(sweep.Report());
+        sweep.SaveBest(argv[1]);
+    }
+}
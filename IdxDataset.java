@@ -0,0 +1,184 @@
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.SplittableRandom;
+
+/**
+ * The IdxDataset class reads an image/label pair of files in the IDX
+ * binary format used by the standard handwriting benchmarks.
+ * Both files are memory mapped; pixels are normalized and labels one-hot
+ * encoded only when a batch is requested, straight into the ins/outs
+ * layout that Neural.Train(double[], double[], int) expects, so the
+ * dataset is never held in memory as doubles.
+ */
+public class IdxDataset extends Object {
+
+    private static final int UBYTE = 0x08;
+
+    public int NumCases;
+    public int NumInputs;   // pixels per image
+    public int NumOutputs;  // number of label classes
+    public int Rows, Columns;
+
+    // Pixel value 0 maps to Low, 255 to High; targets are High for the
+    // label's class and Low otherwise:
+    public double Low = -0.4;
+    public double High = 0.4;
+
+    protected MappedByteBuffer Images;
+    protected MappedByteBuffer Labels;
+    protected int ImageBase, LabelBase;
+
+    // Case order used by the batches (null -> file order):
+    protected int Order[] = null;
+
+    /**
+     * Maps an images file and a labels file.
+     *
+     * @param images_file The IDX file of unsigned byte images (n x rows x columns).
+     * @param labels_file The IDX file of unsigned byte labels (n).
+     * @param num_classes The number of classes, or 0 to use the largest label + 1.
+     */
+    public IdxDataset(String images_file, String labels_file, int num_classes)
+            throws IOException, FileFormatException {
+        Images = Map(images_file);
+        Labels = Map(labels_file);
+        int dims[] = ReadHeader(Images, images_file);
+        if (dims.length < 2)
+            throw new FileFormatException(images_file + ": expected at least 2 dimensions");
+        NumCases = dims[0];
+        Rows = dims[1];
+        Columns = dims.length > 2 ? dims[2] : 1;
+        NumInputs = 1;
+        for (int d = 1; d < dims.length; d++) NumInputs *= dims[d];
+        ImageBase = 4 + 4 * dims.length;
+
+        int label_dims[] = ReadHeader(Labels, labels_file);
+        if (label_dims.length != 1 || label_dims[0] != NumCases)
+            throw new FileFormatException(labels_file + ": expected " + NumCases + " labels");
+        LabelBase = 8;
+        if ((long) ImageBase + (long) NumCases * NumInputs > Images.capacity() ||
+                LabelBase + NumCases > Labels.capacity())
+            throw new FileFormatException("IDX file shorter than its header says");
+
+        if (num_classes <= 0) {
+            for (int k = 0; k < NumCases; k++)
+                num_classes = Math.max(num_classes, Label(k) + 1);
+        }
+        NumOutputs = num_classes;
+    }
+
+    /**
+     * Returns the label of a case.
+     */
+    public int Label(int training_case) {
+        return Labels.get(LabelBase + training_case) & 0xff;
+    }
+
+    /**
+     * Shuffles the order in which GetBatch and TrainEpoch visit the cases.
+     *
+     * @param seed Seed for the shuffle.
+     */
+    public void Shuffle(long seed) {
+        if (Order == null) {
+            Order = new int[NumCases];
+            for (int k = 0; k < NumCases; k++) Order[k] = k;
+        }
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int k = NumCases - 1; k > 0; k--) {
+            int j = random.nextInt(k + 1);
+            int t = Order[k];
+            Order[k] = Order[j];
+            Order[j] = t;
+        }
+    }
+
+    /**
+     * Decodes a batch of cases.
+     *
+     * @param first     The position of the first case (in the current order).
+     * @param num_cases The number of cases.
+     * @param ins       Receives num_cases * NumInputs normalized pixels.
+     * @param outs      Receives num_cases * NumOutputs one-hot targets.
+     * @return The number of cases decoded (less than num_cases at the end).
+     */
+    public int GetBatch(int first, int num_cases, double ins[], double outs[]) {
+        int n = Math.max(0, Math.min(num_cases, NumCases - first));
+        double scale = (High - Low) / 255.0;
+        int ic = 0, oc = 0;
+        for (int k = 0; k < n; k++) {
+            int c = Order == null ? first + k : Order[first + k];
+            int base = ImageBase + c * NumInputs;
+            for (int i = 0; i < NumInputs; i++)
+                ins[ic++] = Low + scale * (Images.get(base + i) & 0xff);
+            int label = Label(c);
+            for (int o = 0; o < NumOutputs; o++)
+                outs[oc++] = o == label ? High : Low;
+        }
+        return n;
+    }
+
+    /**
+     * Trains a network for one epoch over the whole dataset, one batch at a time.
+     *
+     * @param net        The network, with NumInputs inputs and NumOutputs outputs.
+     * @param batch_size The number of cases decoded at a time.
+     * @return The summed training error of the epoch.
+     */
+    public double TrainEpoch(Neural net, int batch_size) {
+        double ins[] = new double[batch_size * NumInputs];
+        double outs[] = new double[batch_size * NumOutputs];
+        double error = 0.0;
+        for (int first = 0; first < NumCases; first += batch_size) {
+            int n = GetBatch(first, batch_size, ins, outs);
+            net.InvalidateHiddenSums();
+            error += net.Train(ins, outs, n);
+        }
+        return error;
+    }
+
+    private static MappedByteBuffer Map(String file_name) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file_name), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            return buffer;
+        }
+    }
+
+    private static int[] ReadHeader(MappedByteBuffer buffer, String file_name)
+            throws FileFormatException {
+        if (buffer.capacity() < 4)
+            throw new FileFormatException(file_name + ": not an IDX file");
+        int magic = buffer.getInt(0);
+        if ((magic >>> 16) != 0)
+            throw new FileFormatException(file_name + ": not an IDX file");
+        if (((magic >>> 8) & 0xff) != UBYTE)
+            throw new FileFormatException(file_name + ": only unsigned byte IDX data is supported");
+        int num_dims = magic & 0xff;
+        if (num_dims == 0 || buffer.capacity() < 4 + 4 * num_dims)
+            throw new FileFormatException(file_name + ": bad IDX header");
+        int dims[] = new int[num_dims];
+        for (int d = 0; d < num_dims; d++)
+            dims[d] = buffer.getInt(4 + 4 * d);
+        return dims;
+    }
+
+    public static void main(String argv[]) throws Exception {
+        if (argv.length < 2) {
+            System.out.println("usage: java IdxDataset <images file> <labels file> [hidden] [epochs]");
+            return;
+        }
+        IdxDataset data = new IdxDataset(argv[0], argv[1], 0);
+        int hidden = argv.length > 2 ? Integer.parseInt(argv[2]) : 30;
+        int epochs = argv.length > 3 ? Integer.parseInt(argv[3]) : 1;
+        Neural net = new Neural(data.NumInputs, hidden, data.NumOutputs);
+        for (int e = 0; e < epochs; e++) {
+            data.Shuffle(e);
+            System.out.println("epoch " + e + " error=" + data.TrainEpoch(net, 256));
+        }
+    }
+}
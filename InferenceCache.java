@@ -0,0 +1,196 @@
+/**
+ * The InferenceCache class remembers the hidden and output values of a
+ * network for binary input patterns, such as the rasterized character
+ * grids of testHand, where every input is either Low or High.
+ * A pattern of up to 63 inputs is packed into the bits of a long and used
+ * as the key of an open addressing (linear probing) table of primitive
+ * arrays. The table holds at most MaxEntries patterns; when it is full
+ * an entry is evicted with the CLOCK algorithm. All entries are dropped
+ * automatically when the network's WeightsVersion changes.
+ */
+class InferenceCache extends Object {
+
+    public static final int MAX_INPUTS = 63;
+    private static final long EMPTY = -1L;
+
+    protected int NumInputs;
+    protected int NumHidden;
+    protected int NumOutputs;
+    protected double Low;
+    protected double High;
+
+    protected int Capacity;   // number of slots, a power of two
+    protected int MaxEntries; // at most 3/4 of the slots are used
+    protected int Size = 0;
+
+    protected long Keys[];
+    // Hidden values followed by output values for each slot:
+    protected double Values[];
+    // CLOCK reference bits:
+    protected boolean Referenced[];
+    protected int Hand = 0;
+
+    // WeightsVersion of the network the entries were computed with:
+    protected int Version;
+    // Key of the pattern passed to the last Lookup (EMPTY if not binary):
+    protected long LastKey = EMPTY;
+
+    public long Hits = 0;
+    public long Misses = 0;
+
+    /**
+     * Creates a cache for a network whose inputs take the values low or high.
+     *
+     * @param net         The network to cache results for.
+     * @param low         The input value encoded as a 0 bit.
+     * @param high        The input value encoded as a 1 bit.
+     * @param max_entries The largest number of patterns to remember.
+     */
+    InferenceCache(Neural net, double low, double high, int max_entries) {
+        NumInputs = net.NumInputs;
+        NumHidden = net.NumHidden;
+        NumOutputs = net.NumOutputs;
+        Low = low;
+        High = high;
+        Capacity = 16;
+        while (Capacity * 3 / 4 < max_entries) Capacity *= 2;
+        MaxEntries = Math.max(1, max_entries);
+        Keys = new long[Capacity];
+        Values = new double[Capacity * (NumHidden + NumOutputs)];
+        Referenced = new boolean[Capacity];
+        java.util.Arrays.fill(Keys, EMPTY);
+        Version = net.WeightsVersion;
+    }
+
+    /**
+     * Looks up the network's current Inputs. On a hit the cached values
+     * are copied into the network's Hidden and Outputs arrays.
+     *
+     * @param net The network, with Inputs filled in.
+     * @return True on a hit; false if ForwardPass must be run.
+     */
+    public boolean Lookup(Neural net) {
+        if (net.WeightsVersion != Version) Clear(net.WeightsVersion);
+        LastKey = Encode(net.Inputs);
+        if (LastKey == EMPTY) return false;
+        int slot = Find(LastKey);
+        if (Keys[slot] == EMPTY) {
+            Misses++;
+            return false;
+        }
+        Hits++;
+        Referenced[slot] = true;
+        int base = slot * (NumHidden + NumOutputs);
+        System.arraycopy(Values, base, net.Hidden, 0, NumHidden);
+        System.arraycopy(Values, base + NumHidden, net.Outputs, 0, NumOutputs);
+        return true;
+    }
+
+    /**
+     * Remembers the network's Hidden and Outputs values for the inputs
+     * passed to the last Lookup.
+     *
+     * @param net The network, after ForwardPass.
+     */
+    public void Store(Neural net) {
+        if (LastKey == EMPTY || net.WeightsVersion != Version) return;
+        int slot = Find(LastKey);
+        if (Keys[slot] == EMPTY) {
+            if (Size >= MaxEntries) {
+                Evict();
+                slot = Find(LastKey);
+            }
+            Keys[slot] = LastKey;
+            Size++;
+        }
+        Referenced[slot] = false;
+        int base = slot * (NumHidden + NumOutputs);
+        System.arraycopy(net.Hidden, 0, Values, base, NumHidden);
+        System.arraycopy(net.Outputs, 0, Values, base + NumHidden, NumOutputs);
+    }
+
+    /**
+     * Returns the number of patterns currently cached.
+     */
+    public int NumEntries() {
+        return Size;
+    }
+
+    /**
+     * Packs binary inputs into a key.
+     *
+     * @param inputs The input values.
+     * @return The key, or EMPTY if an input is neither Low nor High or
+     *         there are more than MAX_INPUTS inputs.
+     */
+    protected long Encode(double inputs[]) {
+        if (NumInputs > MAX_INPUTS) return EMPTY;
+        long key = 0L;
+        for (int i = 0; i < NumInputs; i++) {
+            if (inputs[i] == High) key |= 1L << i;
+            else if (inputs[i] != Low) return EMPTY;
+        }
+        return key;
+    }
+
+    // Returns the slot holding key, or the empty slot where it belongs:
+    private int Find(long key) {
+        int mask = Capacity - 1;
+        int slot = Hash(key) & mask;
+        while (Keys[slot] != EMPTY && Keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private static int Hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    // CLOCK: skip (and clear) referenced entries, remove the first
+    // unreferenced one:
+    private void Evict() {
+        int mask = Capacity - 1;
+        while (true) {
+            int slot = Hand;
+            Hand = (Hand + 1) & mask;
+            if (Keys[slot] == EMPTY) continue;
+            if (Referenced[slot]) {
+                Referenced[slot] = false;
+                continue;
+            }
+            Remove(slot);
+            return;
+        }
+    }
+
+    // Backward shift deletion keeps every probe chain unbroken:
+    private void Remove(int slot) {
+        int mask = Capacity - 1;
+        int stride = NumHidden + NumOutputs;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (Keys[next] != EMPTY) {
+            int home = Hash(Keys[next]) & mask;
+            // move next into the hole unless its home lies in (hole, next]:
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                Keys[hole] = Keys[next];
+                Referenced[hole] = Referenced[next];
+                System.arraycopy(Values, next * stride, Values, hole * stride, stride);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        Keys[hole] = EMPTY;
+        Referenced[hole] = false;
+        Size--;
+    }
+
+    private void Clear(int version) {
+        java.util.Arrays.fill(Keys, EMPTY);
+        java.util.Arrays.fill(Referenced, false);
+        Size = 0;
+        Hand = 0;
+        Version = version;
+    }
+}
@@ -0,0 +1,265 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The InferenceServer class serves a trained network over a plain text TCP
+ * protocol on localhost. Each request line is either
+ *
+ *   x1 x2 ... xn     input values; the reply is one line of output values
+ *   LOAD file        load a new network from an NNfile and swap it in
+ *   STATS            reply with request and batch counts
+ *
+ * Connections only parse lines and queue requests. A single batching
+ * thread collects queued requests into micro-batches of at most MaxBatch
+ * cases, waiting at most MaxWaitMicros after the first request of a batch,
+ * and scores each batch with one call to Neural.ForwardPass(ins, outs, n).
+ * The model is replaced atomically between batches, so a LOAD never drops
+ * or fails requests that are already queued.
+ */
+public class InferenceServer extends Object {
+
+    public int MaxBatch = 64;
+    public long MaxWaitMicros = 500;
+
+    protected volatile Neural Model;
+    protected ServerSocket Server;
+    protected LinkedBlockingQueue<Request> Queue = new LinkedBlockingQueue<Request>();
+    protected ExecutorService Connections = Executors.newCachedThreadPool();
+    protected Thread Batcher;
+    protected volatile boolean Running = false;
+
+    protected long NumRequests = 0;
+    protected long NumBatches = 0;
+
+    /**
+     * One queued inference request.
+     */
+    static class Request {
+        double Inputs[];
+        double Outputs[];
+        String Error = null;
+        boolean Done = false;
+
+        Request(double inputs[]) {
+            Inputs = inputs;
+        }
+
+        synchronized void Finish() {
+            Done = true;
+            notifyAll();
+        }
+
+        synchronized void Await() throws InterruptedException {
+            while (!Done) wait();
+        }
+    }
+
+    /**
+     * Creates a server for a network loaded from an NNfile.
+     *
+     * @param model_file The name of the network file.
+     */
+    public InferenceServer(String model_file) {
+        Model = new Neural(model_file);
+    }
+
+    /**
+     * Creates a server for a network that is already in memory.
+     *
+     * @param model The network to serve; it must not be trained while served.
+     */
+    public InferenceServer(Neural model) {
+        Model = model;
+    }
+
+    /**
+     * Replaces the served network. Batches already being scored finish on
+     * the old network; every later batch uses the new one.
+     *
+     * @param model The new network.
+     */
+    public void SwapModel(Neural model) {
+        Model = model;
+    }
+
+    /**
+     * Starts listening on the loopback interface and starts the batching thread.
+     *
+     * @param port The TCP port, or 0 for any free port.
+     * @return The port the server listens on.
+     */
+    public int Start(int port) throws IOException {
+        Server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Running = true;
+        Batcher = new Thread(this::BatchLoop, "InferenceServer-batcher");
+        Batcher.setDaemon(true);
+        Batcher.start();
+        Thread acceptor = new Thread(this::AcceptLoop, "InferenceServer-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return Server.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections and stops the batching thread.
+     */
+    public void Stop() {
+        Running = false;
+        try {
+            Server.close();
+        } catch (IOException e) {
+        }
+        Batcher.interrupt();
+        Connections.shutdownNow();
+    }
+
+    private void AcceptLoop() {
+        while (Running) {
+            try {
+                Socket socket = Server.accept();
+                Connections.execute(() -> Serve(socket));
+            } catch (IOException e) {
+                if (Running) System.out.println("InferenceServer: accept failed: " + e);
+            }
+        }
+    }
+
+    private void Serve(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(s.getOutputStream())))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0) continue;
+                out.println(Handle(line));
+                out.flush();
+            }
+        } catch (Exception e) {
+            // connection closed by the client
+        }
+    }
+
+    private String Handle(String line) throws InterruptedException {
+        if (line.startsWith("LOAD ")) {
+            String file = line.substring(5).trim();
+            if (!new File(file).canRead()) return "ERROR can not open file " + file;
+            try {
+                SwapModel(new Neural(file));
+            } catch (RuntimeException e) {
+                // a file that does not parse; the old model stays in use:
+                return "ERROR " + e.getMessage();
+            }
+            return "OK";
+        }
+        if (line.equals("STATS")) {
+            synchronized (this) {
+                return "requests=" + NumRequests + " batches=" + NumBatches +
+                        " mean batch=" + (NumBatches == 0 ? 0.0 : (double) NumRequests / NumBatches);
+            }
+        }
+        String tokens[] = line.split("\\s+");
+        double inputs[] = new double[tokens.length];
+        try {
+            for (int i = 0; i < tokens.length; i++)
+                inputs[i] = Double.parseDouble(tokens[i]);
+        } catch (NumberFormatException e) {
+            return "ERROR bad number in request";
+        }
+        Request request = new Request(inputs);
+        Queue.put(request);
+        request.Await();
+        if (request.Error != null) return "ERROR " + request.Error;
+        StringBuffer sb = new StringBuffer();
+        for (int o = 0; o < request.Outputs.length; o++) {
+            if (o > 0) sb.append(' ');
+            sb.append(request.Outputs[o]);
+        }
+        return sb.toString();
+    }
+
+    private void BatchLoop() {
+        List<Request> batch = new ArrayList<Request>(MaxBatch);
+        while (Running) {
+            try {
+                batch.clear();
+                batch.add(Queue.take());
+                long deadline = System.nanoTime() + MaxWaitMicros * 1000L;
+                while (batch.size() < MaxBatch) {
+                    Request next = Queue.poll();
+                    if (next == null) {
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0) break;
+                        next = Queue.poll(wait, TimeUnit.NANOSECONDS);
+                        if (next == null) break;
+                    }
+                    batch.add(next);
+                }
+                Score(batch);
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                for (Request r : batch) {
+                    if (r.Done) continue;
+                    r.Error = e.toString();
+                    r.Finish();
+                }
+            }
+        }
+    }
+
+    private void Score(List<Request> batch) {
+        Neural net = Model; // one model for the whole batch
+        int ni = net.NumInputs, no = net.NumOutputs;
+        int n = 0;
+        for (Request r : batch) {
+            if (r.Inputs.length != ni) {
+                r.Error = "expected " + ni + " inputs, got " + r.Inputs.length;
+                r.Finish();
+            } else {
+                n++;
+            }
+        }
+        double ins[] = new double[n * ni];
+        double outs[] = new double[n * no];
+        int k = 0;
+        for (Request r : batch)
+            if (r.Error == null) System.arraycopy(r.Inputs, 0, ins, ni * k++, ni);
+        net.ForwardPass(ins, outs, n);
+        k = 0;
+        for (Request r : batch) {
+            if (r.Error != null) continue;
+            r.Outputs = new double[no];
+            System.arraycopy(outs, no * k++, r.Outputs, 0, no);
+            r.Finish();
+        }
+        synchronized (this) {
+            NumRequests += batch.size();
+            NumBatches++;
+        }
+    }
+
+    public static void main(String argv[]) throws IOException {
+        if (argv.length < 1) {
+            System.out.println("usage: java InferenceServer <network file> [port] [max batch] [max wait us]");
+            return;
+        }
+        InferenceServer server = new InferenceServer(argv[0]);
+        if (argv.length > 2) server.MaxBatch = Integer.parseInt(argv[2]);
+        if (argv.length > 3) server.MaxWaitMicros = Long.parseLong(argv[3]);
+        int port = server.Start(argv.length > 1 ? Integer.parseInt(argv[1]) : 7070);
+        System.out.println("InferenceServer listening on localhost:" + port);
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+        }
+    }
+}
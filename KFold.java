@@ -0,0 +1,209 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The KFold class runs k-fold cross-validation over a set of training
+ * cases. Cases are dealt into k folds; for fold f a fresh network is
+ * trained on every case outside f and validated on the cases inside f.
+ * The k networks are trained concurrently. No training data is copied:
+ * every network reads the same arrays and uses its own IgnoreTraining
+ * mask to skip the cases of its validation fold.
+ */
+public class KFold extends Object {
+
+    protected double Ins[];
+    protected double Outs[];
+    // The weight of each case (see NNfile.Compact), or null for all 1:
+    protected int Weights[];
+    protected int NumCases;
+    protected int NumInputs;
+    protected int NumOutputs;
+
+    public int NumHidden = 10;
+    public double Rate = 0.5;
+    public int MaxEpochs = 3000;
+    public double TargetError = 0.1;
+    public long Seed = 1;
+    public int InitScheme = WeightInit.UNIFORM;
+    public int NumThreads = Runtime.getRuntime().availableProcessors();
+
+    // Fold[k] is the fold of training case k:
+    protected int Fold[];
+    protected int NumFolds;
+
+    // Results, filled in by Run (index = fold):
+    public Neural Nets[];
+    public int EpochsRun[];
+    public double TrainError[];
+    public double ValidationError[];   // mean |target - output| per output neuron
+    public double ValidationAccuracy[]; // fraction of cases with the right argmax
+    public int ValidationCases[];
+
+    /**
+     * Creates a cross-validation run over a shared set of training cases.
+     *
+     * @param ins         The input training data (read only).
+     * @param outs        The output training data (read only).
+     * @param num_cases   The number of training cases.
+     * @param num_inputs  The number of input neurons.
+     * @param num_outputs The number of output neurons.
+     * @param num_folds   The number of folds, k.
+     */
+    public KFold(double ins[], double outs[], int num_cases,
+                 int num_inputs, int num_outputs, int num_folds) {
+        this(ins, outs, null, num_cases, num_inputs, num_outputs, num_folds);
+    }
+
+    /**
+     * Creates a cross-validation run over training cases with integer
+     * weights: a case of weight w is trained on as by Neural.Train(ins, outs,
+     * weights, num_cases) and counts as w cases in the validation results.
+     *
+     * @param weights The weight of each case, or null for all 1.
+     */
+    public KFold(double ins[], double outs[], int weights[], int num_cases,
+                 int num_inputs, int num_outputs, int num_folds) {
+        Ins = ins;
+        Outs = outs;
+        Weights = weights;
+        NumCases = num_cases;
+        NumInputs = num_inputs;
+        NumOutputs = num_outputs;
+        NumFolds = Math.max(2, Math.min(num_folds, num_cases));
+    }
+
+    /**
+     * Assigns cases to folds after a seeded shuffle, trains the k networks
+     * concurrently and validates each on its held out fold.
+     */
+    public void Run() {
+        Fold = new int[NumCases];
+        int order[] = new int[NumCases];
+        for (int k = 0; k < NumCases; k++) order[k] = k;
+        Random random = new Random(Seed);
+        for (int k = NumCases - 1; k > 0; k--) {
+            int j = random.nextInt(k + 1);
+            int t = order[k];
+            order[k] = order[j];
+            order[j] = t;
+        }
+        for (int k = 0; k < NumCases; k++)
+            Fold[order[k]] = k % NumFolds;
+
+        Nets = new Neural[NumFolds];
+        EpochsRun = new int[NumFolds];
+        TrainError = new double[NumFolds];
+        ValidationError = new double[NumFolds];
+        ValidationAccuracy = new double[NumFolds];
+        ValidationCases = new int[NumFolds];
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(NumThreads, NumFolds)));
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int f = 0; f < NumFolds; f++) {
+            final int fold = f;
+            tasks.add(() -> {
+                RunFold(fold);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> result : pool.invokeAll(tasks))
+                result.get();
+        } catch (Exception e) {
+            throw new RuntimeException("KFold training failed", e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Returns a printable table of the per-fold and aggregate metrics.
+     */
+    public String Report() {
+        StringBuffer sb = new StringBuffer();
+        for (int f = 0; f < NumFolds; f++) {
+            sb.append("fold " + f + ": cases=" + ValidationCases[f] +
+                    " epochs=" + EpochsRun[f] +
+                    " train error=" + TrainError[f] +
+                    " validation error=" + ValidationError[f] +
+                    " accuracy=" + (100.0 * ValidationAccuracy[f]) + "%\n");
+        }
+        sb.append("mean validation error=" + Mean(ValidationError) +
+                " (std " + Std(ValidationError) + ")\n");
+        sb.append("mean accuracy=" + (100.0 * Mean(ValidationAccuracy)) +
+                "% (std " + (100.0 * Std(ValidationAccuracy)) + "%)\n");
+        return sb.toString();
+    }
+
+    private void RunFold(int fold) {
+        Neural net = new Neural(NumInputs, NumHidden, NumOutputs);
+        net.randomizeWeights(InitScheme, Seed + fold);
+        net.LearningRate = Rate;
+        boolean mask[] = new boolean[NumCases];
+        for (int k = 0; k < NumCases; k++)
+            mask[k] = Fold[k] == fold;
+        net.IgnoreTraining = mask;
+
+        double error = Double.MAX_VALUE;
+        int epoch = 0;
+        while (epoch < MaxEpochs && error >= TargetError) {
+            error = net.Train(Ins, Outs, Weights, NumCases);
+            epoch++;
+        }
+
+        int cases = 0, correct = 0;
+        double abs_error = 0.0;
+        for (int k = 0; k < NumCases; k++) {
+            if (!mask[k]) continue;
+            System.arraycopy(Ins, k * NumInputs, net.Inputs, 0, NumInputs);
+            net.ForwardPass();
+            int best = 0, target = 0, weight = Weights == null ? 1 : Weights[k];
+            for (int o = 0; o < NumOutputs; o++) {
+                abs_error += weight * Math.abs(Outs[k * NumOutputs + o] - net.Outputs[o]);
+                if (net.Outputs[o] > net.Outputs[best]) best = o;
+                if (Outs[k * NumOutputs + o] > Outs[k * NumOutputs + target]) target = o;
+            }
+            if (best == target) correct += weight;
+            cases += weight;
+        }
+        Nets[fold] = net;
+        EpochsRun[fold] = epoch;
+        TrainError[fold] = error;
+        ValidationCases[fold] = cases;
+        ValidationError[fold] = abs_error / Math.max(1, cases * NumOutputs);
+        ValidationAccuracy[fold] = (double) correct / Math.max(1, cases);
+    }
+
+    private static double Mean(double x[]) {
+        double sum = 0.0;
+        for (double v : x) sum += v;
+        return sum / Math.max(1, x.length);
+    }
+
+    private static double Std(double x[]) {
+        double mean = Mean(x), sum = 0.0;
+        for (double v : x) sum += (v - mean) * (v - mean);
+        return Math.sqrt(sum / Math.max(1, x.length));
+    }
+
+    public static void main(String argv[]) {
+        if (argv.length < 1) {
+            System.out.println("usage: java KFold <training file> [k] [hidden]");
+            return;
+        }
+        Neural data = new Neural(argv[0]);
+        if (data.InputTraining == null) data.LoadTrainingCases(); // from off-heap storage
+        int k = argv.length > 1 ? Integer.parseInt(argv[1]) : 5;
+        KFold cv = new KFold(data.InputTraining, data.OutputTraining, data.TrainingWeights,
+                data.NumTraining,
+                data.NumInputs, data.NumOutputs, k);
+        if (argv.length > 2) cv.NumHidden = Integer.parseInt(argv[2]);
+        cv.Run();
+        System.out.print(cv.Report());
+    }
+}
@@ -0,0 +1,246 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The KernelTuner class picks the fastest kernel variants (see
+ * Neural.MatMul and Neural.OuterUpdate) for each weight matrix of a
+ * network on the host it runs on: the batched forward pass, the single
+ * case forward pass that training uses and the weight update are timed
+ * separately on W1 and on W2. Tuning is opt-in: call Apply, or set the
+ * system property neural.autotune to "true" to tune every network as it
+ * is constructed. The first network of a given shape is timed on every
+ * candidate for a bounded budget; the choice is remembered per (shape, CPU)
+ * in memory and, if a cache file is configured, in that file, so later
+ * networks and later runs skip the tuning. All variants compute identical
+ * results, so tuning only changes speed.
+ *
+ * System properties:
+ *   neural.autotune       "true" tunes every network as it is constructed
+ *   neural.autotune.ms    tuning budget per shape in milliseconds (50)
+ *   neural.autotune.file  a cache file for the choices (none)
+ *
+ * Cache file: one line per (shape, CPU) of the form
+ *   cpu-id NumInputs NumHidden NumOutputs followed by the choice, for W1
+ *   then W2: ForwardKernel ForwardBlock SingleKernel UpdateKernel
+ */
+class KernelTuner extends Object {
+
+    public static final int FORWARD_ROWS = 0;
+    public static final int FORWARD_CASES = 1;
+    public static final int FORWARD_BLOCKED = 2;
+    public static final int FORWARD_UNROLLED = 3;
+    public static final int BLOCK_SIZES[] = {8, 32, 128};
+
+    public static final int UPDATE_COLUMNS = 0;
+    public static final int UPDATE_ROWS = 1;
+
+    // Number of values in a choice: for W1 then W2, ForwardKernel,
+    // ForwardBlock, SingleKernel and UpdateKernel:
+    public static final int CHOICE_SIZE = 8;
+
+    public static boolean Enabled = "true".equals(System.getProperty("neural.autotune"));
+    public static long BudgetMillis = Long.getLong("neural.autotune.ms", 50);
+    public static String CacheFile = System.getProperty("neural.autotune.file");
+
+    // Choices by key (see CHOICE_SIZE):
+    private static final ConcurrentHashMap<String, int[]> Choices = new ConcurrentHashMap<String, int[]>();
+    private static boolean Loaded = false;
+    private static String Cpu = null;
+
+    /**
+     * Sets the kernel variants of a network, tuning them first if its shape
+     * has not been seen on this CPU. Networks of different shapes are tuned
+     * concurrently; no lock is held while timing.
+     *
+     * @param net The network; its weights are read but not changed.
+     */
+    public static void Apply(Neural net) {
+        if (net.NumInputs == 0) return;
+        synchronized (KernelTuner.class) {
+            if (!Loaded) Load();
+        }
+        String key = Key(net.NumInputs, net.NumHidden, net.NumOutputs);
+        int choice[] = Choices.get(key);
+        if (choice == null) {
+            choice = Tune(net);
+            int earlier[] = Choices.putIfAbsent(key, choice);
+            if (earlier != null) choice = earlier;
+            else Store(key, choice);
+        }
+        for (int m = 0; m < 2; m++) {
+            net.ForwardKernel[m] = choice[4 * m];
+            net.ForwardBlock[m] = choice[4 * m + 1];
+            net.SingleKernel[m] = choice[4 * m + 2];
+            net.UpdateKernel[m] = choice[4 * m + 3];
+        }
+    }
+
+    /**
+     * Times every candidate on a network's own weights and returns the
+     * fastest for each weight matrix (see CHOICE_SIZE). The update kernels
+     * run with a step size of zero, so the weights do not change.
+     * Candidates are run round robin, so JIT warm-up is shared fairly, and
+     * the best time of each is kept.
+     */
+    public static int[] Tune(Neural net) {
+        int choice[] = new int[CHOICE_SIZE];
+        int sizes[] = {net.NumInputs, net.NumHidden, net.NumOutputs};
+        double W[][][] = {net.W1, net.W2};
+        long budget = BudgetMillis / 2;
+        for (int m = 0; m < 2; m++) {
+            int best[] = TuneMatrix(W[m], sizes[m], sizes[m + 1], budget);
+            System.arraycopy(best, 0, choice, 4 * m, 4);
+        }
+        return choice;
+    }
+
+    // Returns {ForwardKernel, ForwardBlock, SingleKernel, UpdateKernel} for one matrix:
+    private static int[] TuneMatrix(double W[][], int rows, int cols, long budget) {
+        long weights = Math.max(1L, (long) rows * cols);
+        int n = (int) Math.max(1, Math.min(64, (1L << 22) / weights));
+        double ins[] = new double[n * rows];
+        java.util.SplittableRandom random = new java.util.SplittableRandom(1);
+        for (int j = 0; j < ins.length; j++)
+            ins[j] = random.nextDouble() - 0.5;
+        double outs[] = new double[n * cols];
+        double b[] = new double[cols];
+
+        // forward candidates: {variant, block}; for a single case only the
+        // unrolled loop differs from the others:
+        int forward[][] = new int[3 + BLOCK_SIZES.length][];
+        forward[0] = new int[]{FORWARD_ROWS, 0};
+        forward[1] = new int[]{FORWARD_CASES, 0};
+        forward[2] = new int[]{FORWARD_UNROLLED, 0};
+        for (int j = 0; j < BLOCK_SIZES.length; j++)
+            forward[3 + j] = new int[]{FORWARD_BLOCKED, BLOCK_SIZES[j]};
+        int single[] = {FORWARD_ROWS, FORWARD_UNROLLED};
+        int update[] = {UPDATE_COLUMNS, UPDATE_ROWS};
+
+        long best_forward[] = new long[forward.length];
+        long best_single[] = new long[single.length];
+        long best_update[] = new long[update.length];
+        java.util.Arrays.fill(best_forward, Long.MAX_VALUE);
+        java.util.Arrays.fill(best_single, Long.MAX_VALUE);
+        java.util.Arrays.fill(best_update, Long.MAX_VALUE);
+        long end = System.nanoTime() + budget * 1000000L;
+        int rounds = 0;
+        do {
+            for (int c = 0; c < forward.length; c++) {
+                java.util.Arrays.fill(outs, 0.0);
+                long t = System.nanoTime();
+                Neural.MatMul(ins, W, outs, n, rows, cols, forward[c][0], forward[c][1]);
+                best_forward[c] = Math.min(best_forward[c], System.nanoTime() - t);
+            }
+            for (int c = 0; c < single.length; c++) {
+                java.util.Arrays.fill(outs, 0, cols, 0.0);
+                long t = System.nanoTime();
+                for (int k = 0; k < n; k++)
+                    Neural.MatMul(ins, W, outs, 1, rows, cols, single[c], 0);
+                best_single[c] = Math.min(best_single[c], System.nanoTime() - t);
+            }
+            for (int c = 0; c < update.length; c++) {
+                long t = System.nanoTime();
+                Neural.OuterUpdate(W, ins, b, rows, cols, 0.0, update[c]);
+                best_update[c] = Math.min(best_update[c], System.nanoTime() - t);
+            }
+            rounds++;
+        } while (rounds < 3 || System.nanoTime() < end);
+
+        int f = Fastest(best_forward), s1 = Fastest(best_single), u = Fastest(best_update);
+        return new int[]{forward[f][0], forward[f][0] == FORWARD_BLOCKED ? forward[f][1] : 32,
+                single[s1], update[u]};
+    }
+
+    private static int Fastest(long times[]) {
+        int best = 0;
+        for (int c = 1; c < times.length; c++)
+            if (times[c] < times[best]) best = c;
+        return best;
+    }
+
+    /**
+     * Forgets all choices, in memory and in the cache file.
+     */
+    public static synchronized void Clear() {
+        Choices.clear();
+        Loaded = true;
+        if (CacheFile != null) new File(CacheFile).delete();
+    }
+
+    private static String Key(int ni, int nh, int no) {
+        return CpuId() + " " + ni + " " + nh + " " + no;
+    }
+
+    // The architecture, core count and (on Linux) CPU model name:
+    private static synchronized String CpuId() {
+        if (Cpu == null) {
+            String model = "";
+            try {
+                for (String line : Files.readAllLines(Paths.get("/proc/cpuinfo"))) {
+                    if (line.startsWith("model name")) {
+                        model = line.substring(line.indexOf(':') + 1).trim();
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // not Linux: architecture and core count only
+            }
+            Cpu = (System.getProperty("os.arch") + "-" +
+                    Runtime.getRuntime().availableProcessors() + "-" + model).replaceAll("\\s+", "_");
+        }
+        return Cpu;
+    }
+
+    private static void Load() {
+        Loaded = true;
+        if (CacheFile == null) return;
+        File file = new File(CacheFile);
+        if (!file.canRead()) return;
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String f[] = line.trim().split("\\s+");
+                if (f.length != 4 + CHOICE_SIZE) continue;
+                try {
+                    int choice[] = new int[CHOICE_SIZE];
+                    for (int j = 0; j < CHOICE_SIZE; j++)
+                        choice[j] = Integer.parseInt(f[4 + j]);
+                    Choices.put(f[0] + " " + f[1] + " " + f[2] + " " + f[3], choice);
+                } catch (NumberFormatException e) {
+                    // skip a damaged line
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Warning: can not read kernel cache " + CacheFile);
+        }
+    }
+
+    private static synchronized void Store(String key, int choice[]) {
+        if (CacheFile == null) return;
+        try (PrintStream ps = new PrintStream(new FileOutputStream(CacheFile, true))) {
+            StringBuffer line = new StringBuffer(key);
+            for (int x : choice)
+                line.append(" " + x);
+            ps.println(line);
+        } catch (IOException e) {
+            // the choice is still used for this run
+        }
+    }
+
+    public static void main(String argv[]) {
+        if (argv.length < 3) {
+            System.out.println("usage: java KernelTuner <inputs> <hidden> <outputs>");
+            return;
+        }
+        Neural net = new Neural(Integer.parseInt(argv[0]), Integer.parseInt(argv[1]),
+                Integer.parseInt(argv[2]));
+        Apply(net);
+        System.out.println(Key(net.NumInputs, net.NumHidden, net.NumOutputs) + ":");
+        for (int m = 0; m < 2; m++)
+            System.out.println("  W" + (m + 1) + ": forward kernel " + net.ForwardKernel[m] +
+                    " block " + net.ForwardBlock[m] + ", single case kernel " +
+                    net.SingleKernel[m] + ", update kernel " + net.UpdateKernel[m]);
+    }
+}
@@ -0,0 +1,366 @@
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The ModelArchive class reads and writes a compact binary form of an
+ * NNfile: weights as 16 bit floats (IEEE half precision or bfloat16),
+ * training cases optionally quantized, everything deflate compressed with
+ * java.util.zip and followed by a CRC32 of the uncompressed contents.
+ * Both directions stream row by row, so no second copy of the model is
+ * built in memory.
+ *
+ * Layout (after compression is undone):
+ *   int    MAGIC, byte VERSION
+ *   int    NumLayers, NumNeuronsPerLayer[NumLayers]
+ *   int    WeightFlag (+ NNfile.SOFTMAX_FLAG, CONV_FLAG, CASE_WEIGHTS_FLAG), SpecialFlag,
+ *          NumTraining
+ *   byte   weight format, byte training format
+ *   with CONV_FLAG: int layers, then 7 ints per layer as in NNfile
+ *   W1 and W2 rows (2 bytes per weight) if WeightFlag != 0,
+ *   then each convolution layer's K rows and Bias
+ *   SpecialFlag doubles
+ *   training cases in the training format
+ *   with CASE_WEIGHTS_FLAG: an int weight per training case
+ *   long   CRC32 of everything above
+ * Only the magic number is written before the compressed stream.
+ */
+public class ModelArchive extends Object {
+
+    public static final int MAGIC = 0x4e4e5a31; // "NNZ1"
+    public static final int VERSION = 1;
+
+    // Weight formats:
+    public static final int FLOAT16 = 1;
+    public static final int BFLOAT16 = 2;
+
+    // Training case formats:
+    public static final int TRAINING_NONE = 0;   // training cases are dropped
+    public static final int TRAINING_HALF = 1;   // IEEE half precision
+    public static final int TRAINING_INT8 = 2;   // 8 bits between the min and max value
+
+    /**
+     * Writes an NNfile as a compressed archive.
+     *
+     * @param file            The network to write.
+     * @param archive_name    The name of the archive file.
+     * @param weight_format   FLOAT16 or BFLOAT16.
+     * @param training_format TRAINING_NONE, TRAINING_HALF or TRAINING_INT8.
+     */
+    public static void Write(NNfile file, String archive_name,
+                             int weight_format, int training_format) throws IOException {
+        if (weight_format != FLOAT16 && weight_format != BFLOAT16)
+            throw new IllegalArgumentException("unknown weight format " + weight_format);
+        if (training_format != TRAINING_NONE && training_format != TRAINING_HALF &&
+                training_format != TRAINING_INT8)
+            throw new IllegalArgumentException("unknown training format " + training_format);
+        try (OutputStream raw = new BufferedOutputStream(new FileOutputStream(archive_name))) {
+            new DataOutputStream(raw).writeInt(MAGIC);
+            DeflaterOutputStream zip = new DeflaterOutputStream(raw,
+                    new Deflater(Deflater.BEST_COMPRESSION), 1 << 16);
+            CheckedOutputStream checked = new CheckedOutputStream(zip, new CRC32());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, 1 << 16));
+
+            int num_training = training_format == TRAINING_NONE ? 0 : file.NumTraining;
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(file.NumLayers);
+            for (int i = 0; i < file.NumLayers; i++)
+                out.writeInt(file.NumNeuronsPerLayer[i]);
+            boolean case_weights = file.CaseWeights != null && num_training > 0;
+            out.writeInt(file.WeightFlag | (file.SoftmaxOutput ? NNfile.SOFTMAX_FLAG : 0) |
+                    (file.Convs != null ? NNfile.CONV_FLAG : 0) |
+                    (case_weights ? NNfile.CASE_WEIGHTS_FLAG : 0));
+            out.writeInt(file.SpecialFlag);
+            out.writeInt(num_training);
+            out.writeByte(weight_format);
+            out.writeByte(training_format);
+            if (file.Convs != null) {
+                out.writeInt(file.Convs.length);
+                for (ConvLayer layer : file.Convs) {
+                    out.writeInt(layer.InChannels);
+                    out.writeInt(layer.InHeight);
+                    out.writeInt(layer.InWidth);
+                    out.writeInt(layer.Filters);
+                    out.writeInt(layer.Kernel);
+                    out.writeInt(layer.Pad);
+                    out.writeInt(layer.Pool);
+                }
+            }
+
+            if (file.WeightFlag != 0) {
+                for (int i = 0; i < file.NumInput; i++)
+                    for (int h = 0; h < file.NumHidden; h++)
+                        out.writeShort(Encode16(file.GetW1(i, h), weight_format));
+                for (int h = 0; h < file.NumHidden; h++)
+                    for (int o = 0; o < file.NumOutput; o++)
+                        out.writeShort(Encode16(file.GetW2(h, o), weight_format));
+                if (file.Convs != null) {
+                    for (ConvLayer layer : file.Convs) {
+                        for (double row[] : layer.K)
+                            for (double x : row)
+                                out.writeShort(Encode16(x, weight_format));
+                        for (double x : layer.Bias)
+                            out.writeShort(Encode16(x, weight_format));
+                    }
+                }
+            }
+            for (int i = 0; i < file.SpecialFlag; i++)
+                out.writeDouble(file.GetSpecial(i));
+
+            if (training_format == TRAINING_HALF) {
+                for (int k = 0; k < num_training; k++) {
+                    for (int i = 0; i < file.TrainingInputs(); i++)
+                        out.writeShort(FloatToHalf((float) file.GetInput(k, i)));
+                    for (int o = 0; o < file.NumOutput; o++)
+                        out.writeShort(FloatToHalf((float) file.GetOutput(k, o)));
+                }
+            } else if (training_format == TRAINING_INT8) {
+                double in_min = Double.MAX_VALUE, in_max = -Double.MAX_VALUE;
+                double out_min = Double.MAX_VALUE, out_max = -Double.MAX_VALUE;
+                for (int k = 0; k < num_training; k++) {
+                    for (int i = 0; i < file.TrainingInputs(); i++) {
+                        in_min = Math.min(in_min, file.GetInput(k, i));
+                        in_max = Math.max(in_max, file.GetInput(k, i));
+                    }
+                    for (int o = 0; o < file.NumOutput; o++) {
+                        out_min = Math.min(out_min, file.GetOutput(k, o));
+                        out_max = Math.max(out_max, file.GetOutput(k, o));
+                    }
+                }
+                out.writeDouble(in_min);
+                out.writeDouble(in_max);
+                out.writeDouble(out_min);
+                out.writeDouble(out_max);
+                for (int k = 0; k < num_training; k++) {
+                    for (int i = 0; i < file.TrainingInputs(); i++)
+                        out.writeByte(Quantize8(file.GetInput(k, i), in_min, in_max));
+                    for (int o = 0; o < file.NumOutput; o++)
+                        out.writeByte(Quantize8(file.GetOutput(k, o), out_min, out_max));
+                }
+            }
+            if (case_weights) {
+                for (int k = 0; k < num_training; k++)
+                    out.writeInt(file.GetWeight(k));
+            }
+            out.flush();
+            new DataOutputStream(zip).writeLong(checked.getChecksum().getValue());
+            zip.finish();
+        }
+    }
+
+    /**
+     * Reads a compressed archive into a new NNfile.
+     *
+     * @param archive_name The name of the archive file.
+     * @return The network, its special data and any training cases.
+     */
+    public static NNfile Read(String archive_name) throws IOException, FileFormatException {
+        try (InputStream raw = new BufferedInputStream(new FileInputStream(archive_name))) {
+            if (new DataInputStream(raw).readInt() != MAGIC)
+                throw new FileFormatException(archive_name + ": not a model archive");
+            InflaterInputStream zip = new InflaterInputStream(raw);
+            CheckedInputStream checked = new CheckedInputStream(zip, new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+
+            if (in.readInt() != MAGIC || in.readByte() != VERSION)
+                throw new FileFormatException(archive_name + ": unsupported archive version");
+            int num_layers = in.readInt();
+            if (num_layers != 3)
+                throw new FileFormatException(archive_name + ": expected 3 neuron layers");
+            int layers[] = new int[num_layers];
+            for (int i = 0; i < num_layers; i++)
+                layers[i] = in.readInt();
+            int weight_flag = in.readInt();
+            boolean softmax = (weight_flag & NNfile.SOFTMAX_FLAG) != 0;
+            boolean conv = (weight_flag & NNfile.CONV_FLAG) != 0;
+            boolean case_weights = (weight_flag & NNfile.CASE_WEIGHTS_FLAG) != 0;
+            weight_flag &= ~(NNfile.SOFTMAX_FLAG | NNfile.CONV_FLAG | NNfile.CASE_WEIGHTS_FLAG);
+            int special_flag = in.readInt();
+            int num_training = in.readInt();
+            int weight_format = in.readByte();
+            int training_format = in.readByte();
+            if (weight_format != FLOAT16 && weight_format != BFLOAT16)
+                throw new FileFormatException(archive_name + ": unknown weight format");
+
+            NNfile file = new NNfile(layers[0], layers[1], layers[2]);
+            if (conv) {
+                file.Convs = new ConvLayer[in.readInt()];
+                for (int l = 0; l < file.Convs.length; l++)
+                    file.Convs[l] = new ConvLayer(in.readInt(), in.readInt(), in.readInt(),
+                            in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            }
+            if (weight_flag != 0) {
+                for (int i = 0; i < file.NumInput; i++)
+                    for (int h = 0; h < file.NumHidden; h++)
+                        file.SetW1(i, h, Decode16(in.readShort(), weight_format));
+                for (int h = 0; h < file.NumHidden; h++)
+                    for (int o = 0; o < file.NumOutput; o++)
+                        file.SetW2(h, o, Decode16(in.readShort(), weight_format));
+                if (file.Convs != null) {
+                    for (ConvLayer layer : file.Convs) {
+                        for (double row[] : layer.K)
+                            for (int f = 0; f < layer.Filters; f++)
+                                row[f] = Decode16(in.readShort(), weight_format);
+                        for (int f = 0; f < layer.Filters; f++)
+                            layer.Bias[f] = Decode16(in.readShort(), weight_format);
+                    }
+                }
+            }
+            file.WeightFlag = weight_flag;
+            file.SoftmaxOutput = softmax;
+            for (int i = 0; i < special_flag; i++)
+                file.AddSpecial(in.readDouble());
+
+            double inputs[] = new double[file.TrainingInputs()];
+            double outputs[] = new double[file.NumOutput];
+            if (training_format == TRAINING_HALF) {
+                for (int k = 0; k < num_training; k++) {
+                    for (int i = 0; i < file.TrainingInputs(); i++)
+                        inputs[i] = HalfToFloat(in.readShort());
+                    for (int o = 0; o < file.NumOutput; o++)
+                        outputs[o] = HalfToFloat(in.readShort());
+                    file.AddTraining(inputs, outputs);
+                }
+            } else if (training_format == TRAINING_INT8) {
+                double in_min = in.readDouble(), in_max = in.readDouble();
+                double out_min = in.readDouble(), out_max = in.readDouble();
+                for (int k = 0; k < num_training; k++) {
+                    for (int i = 0; i < file.TrainingInputs(); i++)
+                        inputs[i] = Dequantize8(in.readUnsignedByte(), in_min, in_max);
+                    for (int o = 0; o < file.NumOutput; o++)
+                        outputs[o] = Dequantize8(in.readUnsignedByte(), out_min, out_max);
+                    file.AddTraining(inputs, outputs);
+                }
+            } else if (training_format != TRAINING_NONE) {
+                throw new FileFormatException(archive_name + ": unknown training format");
+            }
+            if (case_weights) {
+                file.CaseWeights = new int[num_training];
+                for (int k = 0; k < num_training; k++)
+                    file.CaseWeights[k] = in.readInt();
+            }
+
+            long expected = checked.getChecksum().getValue();
+            if (new DataInputStream(zip).readLong() != expected)
+                throw new FileFormatException(archive_name + ": checksum mismatch");
+            return file;
+        }
+    }
+
+    private static int Encode16(double x, int format) {
+        if (format == BFLOAT16) return FloatToBFloat16((float) x);
+        return FloatToHalf((float) x);
+    }
+
+    private static double Decode16(short bits, int format) {
+        if (format == BFLOAT16) return BFloat16ToFloat(bits);
+        return HalfToFloat(bits);
+    }
+
+    /**
+     * Converts a float to IEEE 754 half precision bits, rounding to nearest even.
+     */
+    public static short FloatToHalf(float f) {
+        int bits = Float.floatToRawIntBits(f);
+        int sign = (bits >>> 16) & 0x8000;
+        int exp = (bits >>> 23) & 0xff;
+        int mant = bits & 0x7fffff;
+        if (exp == 0xff) // infinity or NaN
+            return (short) (sign | 0x7c00 | (mant != 0 ? 0x200 : 0));
+        int e = exp - 127 + 15;
+        if (e >= 31) return (short) (sign | 0x7c00); // too large: infinity
+        if (e <= 0) {
+            // subnormal half (or zero):
+            if (e < -10) return (short) sign;
+            mant |= 0x800000;
+            int shift = 14 - e;
+            int half = mant >>> shift;
+            int rem = mant & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (rem > halfway || (rem == halfway && (half & 1) != 0)) half++;
+            return (short) (sign | half);
+        }
+        int half = (e << 10) | (mant >>> 13);
+        int rem = mant & 0x1fff;
+        if (rem > 0x1000 || (rem == 0x1000 && (half & 1) != 0))
+            half++; // a carry into the exponent is still correct
+        return (short) (sign | half);
+    }
+
+    /**
+     * Converts IEEE 754 half precision bits to a float.
+     */
+    public static float HalfToFloat(short h) {
+        int sign = (h & 0x8000) << 16;
+        int exp = (h >>> 10) & 0x1f;
+        int mant = h & 0x3ff;
+        if (exp == 0) {
+            float f = mant * 0x1p-24f;
+            return sign != 0 ? -f : f;
+        }
+        if (exp == 31)
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mant << 13));
+        return Float.intBitsToFloat(sign | ((exp + 112) << 23) | (mant << 13));
+    }
+
+    /**
+     * Converts a float to bfloat16 bits (the top half of the float),
+     * rounding to nearest even.
+     */
+    public static short FloatToBFloat16(float f) {
+        int bits = Float.floatToRawIntBits(f);
+        if (Float.isNaN(f)) return (short) ((bits >>> 16) | 0x40);
+        return (short) ((bits + 0x7fff + ((bits >>> 16) & 1)) >>> 16);
+    }
+
+    /**
+     * Converts bfloat16 bits to a float.
+     */
+    public static float BFloat16ToFloat(short b) {
+        return Float.intBitsToFloat((b & 0xffff) << 16);
+    }
+
+    private static int Quantize8(double x, double min, double max) {
+        if (max <= min) return 0;
+        return (int) Math.round((x - min) * 255.0 / (max - min));
+    }
+
+    private static double Dequantize8(int q, double min, double max) {
+        if (max <= min) return min;
+        return min + q * (max - min) / 255.0;
+    }
+
+    public static void main(String argv[]) throws Exception {
+        int weight_format = BFLOAT16, training_format = TRAINING_INT8;
+        boolean usage = argv.length < 3;
+        if (argv.length > 3) {
+            if (argv[3].equals("fp16")) weight_format = FLOAT16;
+            else usage |= !argv[3].equals("bf16");
+        }
+        if (argv.length > 4) {
+            if (argv[4].equals("none")) training_format = TRAINING_NONE;
+            else if (argv[4].equals("half")) training_format = TRAINING_HALF;
+            else usage |= !argv[4].equals("int8");
+        }
+        if (!usage && argv[0].equals("pack")) {
+            NNfile file = new NNfile(argv[1]);
+            if (argv.length <= 4 && file.NumTraining > 0)
+                System.out.println("Warning: the training cases are quantized to 8 bits " +
+                        "(pass half or none as the training format to change this)");
+            Write(file, argv[2], weight_format, training_format);
+            System.out.println(argv[1] + " (" + new File(argv[1]).length() + " bytes) -> " +
+                    argv[2] + " (" + new File(argv[2]).length() + " bytes)");
+        } else if (!usage && argv[0].equals("unpack")) {
+            Read(argv[1]).Save(argv[2]);
+        } else {
+            System.out.println("usage: java ModelArchive pack <network file> <archive> [bf16|fp16] [int8|half|none]");
+            System.out.println("       (the defaults are bf16 weights and int8 training cases, both lossy)");
+            System.out.println("       java ModelArchive unpack <archive> <network file>");
+        }
+    }
+}
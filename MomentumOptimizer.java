@@ -0,0 +1,56 @@
+/**
+ * SGD with classical or Nesterov momentum.
+ */
+class MomentumOptimizer extends Optimizer {
+
+    public double Momentum;
+    public boolean Nesterov;
+
+    // Velocity buffers, indexed by layer (0 -> W1 shape, 1 -> W2 shape):
+    protected double[][][] Velocity = new double[2][][];
+
+    MomentumOptimizer(double rate, double momentum, boolean nesterov) {
+        super(rate);
+        Momentum = momentum;
+        Nesterov = nesterov;
+    }
+
+    protected void Allocate(int num_inputs, int num_hidden, int num_outputs) {
+        Velocity[0] = new double[num_inputs][num_hidden];
+        Velocity[1] = new double[num_hidden][num_outputs];
+    }
+
+    protected void UpdateLayer(int layer, double[][] W, double a[], double delta[],
+                               int rows, int cols) {
+        double V[][] = Velocity[layer];
+        double rate = CurrentRate;
+        double mu = Momentum;
+        for (int r = 0; r < rows; r++) {
+            double w[] = W[r];
+            double v[] = V[r];
+            double ar = a[r];
+            for (int c = 0; c < cols; c++) {
+                double step = rate * ar * delta[c];
+                v[c] = mu * v[c] + step;
+                w[c] += Nesterov ? mu * v[c] + step : v[c];
+            }
+        }
+    }
+
+    protected int StateCount() {
+        return 1;
+    }
+
+    protected void UpdateParams(double W[][], double G[][], double state[][][]) {
+        double rate = CurrentRate;
+        double mu = Momentum;
+        for (int r = 0; r < W.length; r++) {
+            double w[] = W[r], g[] = G[r], v[] = state[0][r];
+            for (int c = 0; c < w.length; c++) {
+                double step = rate * g[c];
+                v[c] = mu * v[c] + step;
+                w[c] += Nesterov ? mu * v[c] + step : v[c];
+            }
+        }
+    }
+}
@@ -3,20 +3,46 @@ import java.io.*;
  * The NNfile class parses neural network input files, storing network parameters
  * and optional training data in memory.
  */
-class FileFormatException extends Exception {
-    public FileFormatException(String str) {
-        super(str);
-    }
-}
-
 public class NNfile {
     public int NumLayers;
     public int NumNeuronsPerLayer[];
     public int NumInput, NumHidden, NumOutput, NumTraining;
     public int WeightFlag;
+    // Softmax output layer; stored as this bit of the weight flag value:
+    public static final int SOFTMAX_FLAG = 2;
+    public boolean SoftmaxOutput = false;
+    // Convolution layers in front of the input layer (see ConvNeural);
+    // present when the weight flag value has this bit:
+    public static final int CONV_FLAG = 4;
+    public ConvLayer Convs[] = null;
+    // Integer weight of each training case (see Compact), null when every
+    // case counts once; when the weight flag value has this bit, each
+    // training case in the file ends with its weight:
+    public static final int CASE_WEIGHTS_FLAG = 8;
+    public int CaseWeights[] = null;
     public int SpecialFlag;
-    public int BaseIndex, TopIndex;
-    private double data[];
+    public int BaseIndex;
+    public long TopIndex;
+    // Index in Data of the first training case (after any special data):
+    public int TrainingBase;
+    // The weights are kept out of Data, as row arrays that a Neural
+    // network can use directly (see Neural(String) and ShareWeights):
+    public double[][] W1;
+    public double[][] W2;
+    // The network working on W1 and W2, if any; SetW1 and SetW2 tell it
+    // that its weights changed:
+    public Neural Net = null;
+    // The number of training cases in the file when it was read; more than
+    // NumTraining when only a shard of them was loaded:
+    public int FileTraining = 0;
+    // The header, special data and training cases (see NewStore):
+    private DoubleStore Data;
+    private static boolean StoreWarned = false;
+    // The shard of training cases ReadFile keeps, and where it is in the
+    // training cases of the file (see NNfile(String, int, int)):
+    private int ShardIndex = 0, ShardCount = 1;
+    private long RawCount = 0, RawStart = -1;
+    private int RawRowSize = 0;
 
     /**
      * Creates a new instance of NNfile with default values.
@@ -31,107 +57,318 @@ public class NNfile {
      * @param input_file The name of the input file containing neural network configuration.
      */
     public NNfile(String input_file) {
-        data = new double[40000];
+        this(input_file, 0, 1);
+    }
+
+    /**
+     * Creates a new instance of NNfile from a given input file, keeping only
+     * one shard of its training cases: every num_shards'th case, starting
+     * with case shard. The other cases are skipped while the file is read,
+     * so they are never held in memory (see ParameterServer). With
+     * num_shards 0 no training cases are kept, e.g. to load only the weights.
+     *
+     * @param input_file The name of the input file containing neural network configuration.
+     * @param shard      The first case to keep, 0 <= shard < num_shards.
+     * @param num_shards The number of shards.
+     * @throws IllegalArgumentException If the file can not be read or is not a network file.
+     */
+    public NNfile(String input_file, int shard, int num_shards) {
+        ShardIndex = shard;
+        ShardCount = num_shards;
+        Data = NewStore(40000);
         TopIndex = 0;
-        FileInputStream is = null;
+        FileInputStream is;
         try {
             is = new FileInputStream(input_file);
-        } catch (Exception E) {
-            System.out.println("can not open file " + input_file);
+        } catch (IOException E) {
+            throw new IllegalArgumentException("can not open file " + input_file, E);
         }
         try {
-            if (is != null) ReadFile(is);
+            ReadFile(is);
             is.close();
-        } catch (Exception E) {
-            System.out.println("can not process file");
+        } catch (IOException | FileFormatException E) {
+            Data.close();
+            throw new IllegalArgumentException("can not process file " + input_file + ": " +
+                    E.getMessage(), E);
         }
         System.out.println("Done with ReadFile, calling ParseData...");
-        ParseData();
+        try {
+            if (ShardCount != 1 && TopIndex > 0) {
+                // the header still counts every case of the file:
+                int index = 3 + (int) Data.Get(0);
+                int total = (int) Data.Get(index);
+                Data.Set(index, ShardCount == 0 || total <= ShardIndex ? 0
+                        : (total - ShardIndex + ShardCount - 1) / ShardCount);
+                ParseData();
+                FileTraining = total;
+            } else {
+                ParseData();
+            }
+        } catch (RuntimeException E) {
+            // e.g. a file that ends before its header says it does:
+            Data.close();
+            throw new IllegalArgumentException("can not process file " + input_file +
+                    ": not a complete network file", E);
+        }
         OutputStream f = null;
         System.out.println("Done with ParseData(), write output...");
     }
 
+    /**
+     * Creates a new instance of NNfile for a three layer network with no
+     * weights or training cases yet, e.g. to save a network built in memory.
+     *
+     * @param num_input  The number of input neurons.
+     * @param num_hidden The number of hidden neurons.
+     * @param num_output The number of output neurons.
+     */
+    public NNfile(int num_input, int num_hidden, int num_output) {
+        NumLayers = 3;
+        NumNeuronsPerLayer = new int[]{num_input, num_hidden, num_output};
+        NumInput = num_input;
+        NumHidden = num_hidden;
+        NumOutput = num_output;
+        WeightFlag = 0;
+        SpecialFlag = 0;
+        NumTraining = 0;
+        BaseIndex = 7;
+        TrainingBase = BaseIndex;
+        Data = NewStore(40000);
+        TopIndex = BaseIndex;
+        W1 = new double[NumInput][NumHidden];
+        W2 = new double[NumHidden][NumOutput];
+    }
+
+    /**
+     * Creates the storage for the header, special data and training cases.
+     * It is a HeapStore unless the system property neural.storage is
+     * "offheap"; then it is a SegmentStore (see jdk22/SegmentStore.java),
+     * in a temporary memory mapped file in the directory given by the
+     * property neural.storage.dir if that is set, or else in native memory.
+     *
+     * @param size The initial number of values.
+     */
+    static DoubleStore NewStore(long size) {
+        if ("offheap".equals(System.getProperty("neural.storage"))) {
+            try {
+                return (DoubleStore) Class.forName("SegmentStore")
+                        .getConstructor(long.class, String.class)
+                        .newInstance(size, System.getProperty("neural.storage.dir"));
+            } catch (ReflectiveOperationException | LinkageError e) {
+                if (!StoreWarned)
+                    System.out.println("Off-heap storage is not available (" + e +
+                            "), keeping training data on the heap");
+                StoreWarned = true;
+            }
+        }
+        return new HeapStore(size);
+    }
+
+    /**
+     * Returns true if the training cases are kept on the Java heap, false if
+     * they are in off-heap storage (see NewStore). Neural reads off-heap
+     * cases a batch at a time instead of copying them all into its arrays.
+     */
+    public boolean TrainingOnHeap() {
+        return Data instanceof HeapStore;
+    }
+
+    /**
+     * Releases the storage of the training cases (which off-heap storage
+     * needs, as the garbage collector does not free it). The weights stay usable.
+     */
+    public void close() {
+        Data.close();
+        NumTraining = 0;
+    }
+
     /**
      * Parses the data read from the input file.
      */
     void ParseData() {
         int k = 0;
-        NumLayers = (int) data[k++];
+        NumLayers = (int) Data.Get(k++);
         NumNeuronsPerLayer = new int[NumLayers];
         for (int i = 0; i < NumLayers; i++)
-            NumNeuronsPerLayer[i] = (int) data[k++];
+            NumNeuronsPerLayer[i] = (int) Data.Get(k++);
         NumInput = NumNeuronsPerLayer[0];
         NumHidden = NumNeuronsPerLayer[1];
         NumOutput = NumNeuronsPerLayer[2];
-        WeightFlag = (int) data[k++];
-        if (WeightFlag == 0) {
-            // Make room in data array for any weights added in later:
-            int NumW = NumInput * NumHidden + NumHidden * NumOutput;
-            for (int i = TopIndex; i > 6; i--) {
-                data[i + NumW] = data[i];
-            }
-            TopIndex += NumW;
+        WeightFlag = (int) Data.Get(k++);
+        SoftmaxOutput = (WeightFlag & SOFTMAX_FLAG) != 0;
+        boolean conv = (WeightFlag & CONV_FLAG) != 0;
+        boolean case_weights = (WeightFlag & CASE_WEIGHTS_FLAG) != 0;
+        WeightFlag &= ~(SOFTMAX_FLAG | CONV_FLAG | CASE_WEIGHTS_FLAG);
+        SpecialFlag = (int) Data.Get(k++);
+        NumTraining = FileTraining = (int) Data.Get(k++);
+        if (conv) {
+            // seven values per layer: channels height width filters kernel pad pool
+            Convs = new ConvLayer[(int) Data.Get(k++)];
+            for (int l = 0; l < Convs.length; l++, k += 7)
+                Convs[l] = new ConvLayer((int) Data.Get(k), (int) Data.Get(k + 1),
+                        (int) Data.Get(k + 2), (int) Data.Get(k + 3), (int) Data.Get(k + 4),
+                        (int) Data.Get(k + 5), (int) Data.Get(k + 6));
         }
-        SpecialFlag = (int) data[k++];
-        NumTraining = (int) data[k++];
         BaseIndex = k;
+        Require(k);
+        W1 = new double[NumInput][NumHidden];
+        W2 = new double[NumHidden][NumOutput];
+        if (WeightFlag != 0) {
+            long weights = (long) NumInput * NumHidden + (long) NumHidden * NumOutput;
+            if (Convs != null)
+                for (ConvLayer layer : Convs)
+                    weights += (long) (layer.K.length + 1) * layer.Filters;
+            Require(k + weights);
+            // Move the weights into the row arrays and close the gap:
+            for (int i = 0; i < NumInput; i++)
+                Data.Read(k + i * NumHidden, W1[i], 0, NumHidden);
+            k += NumInput * NumHidden;
+            for (int h = 0; h < NumHidden; h++)
+                Data.Read(k + h * NumOutput, W2[h], 0, NumOutput);
+            k += NumHidden * NumOutput;
+            if (Convs != null) {
+                for (ConvLayer layer : Convs) {
+                    for (double row[] : layer.K) {
+                        Data.Read(k, row, 0, layer.Filters);
+                        k += layer.Filters;
+                    }
+                    Data.Read(k, layer.Bias, 0, layer.Filters);
+                    k += layer.Filters;
+                }
+            }
+            if (TopIndex > k)
+                Data.Move(k, BaseIndex, TopIndex - k);
+            TopIndex = Math.max(BaseIndex, TopIndex - (k - BaseIndex));
+        }
+        TrainingBase = BaseIndex + SpecialFlag;
+        Require(TrainingBase + (long) NumTraining *
+                (TrainingInputs() + NumOutput + (case_weights ? 1 : 0)));
+        if (case_weights) {
+            // Move the weights out of the training rows and close the gaps:
+            int size = TrainingInputs() + NumOutput;
+            CaseWeights = new int[NumTraining];
+            for (int c = 0; c < NumTraining; c++) {
+                long from = TrainingBase + (long) c * (size + 1);
+                Data.Move(from, TrainingBase + (long) c * size, size);
+                CaseWeights[c] = (int) Data.Get(from + size);
+            }
+            TopIndex = TrainingBase + (long) NumTraining * size;
+        }
+    }
+
+    // Fails unless the file held at least count values:
+    private void Require(long count) {
+        if (TopIndex < count)
+            throw new IllegalArgumentException("the file ends early (" + TopIndex +
+                    " of at least " + count + " values)");
+    }
+
+    /**
+     * Makes this file use the given weight arrays (without copying them),
+     * e.g. to save a network that was not loaded from this file.
+     *
+     * @param w1 The input to hidden weights, [NumInput][NumHidden].
+     * @param w2 The hidden to output weights, [NumHidden][NumOutput].
+     */
+    public void ShareWeights(double[][] w1, double[][] w2) {
+        if (w1.length != NumInput || w2.length != NumHidden ||
+                (NumInput > 0 && w1[0].length != NumHidden) ||
+                (NumHidden > 0 && w2[0].length != NumOutput)) {
+            System.out.println("Error: weight shape does not match in NNfile::ShareWeights");
+            return;
+        }
+        W1 = w1;
+        W2 = w2;
+        WeightFlag = 1; // set this so save() will save weights
+    }
+
+    /**
+     * Returns the number of input values per training case: the size of the
+     * first convolution layer's input grid, or else the number of input neurons.
+     */
+    public int TrainingInputs() {
+        return Convs != null && Convs.length > 0 ? Convs[0].InputSize() : NumInput;
     }
 
     // To get weights:
     public double GetW1(int input, int hidden) {
-        if (WeightFlag == 0) return 0.0;
-        return data[BaseIndex + input * NumHidden + hidden];
+        return W1[input][hidden];
     }
 
     public double GetW2(int hidden, int output) {
-        if (WeightFlag == 0) return 0.0;
-        return data[BaseIndex + NumInput * NumHidden + hidden * NumOutput + output];
+        return W2[hidden][output];
     }
 
     // To set weights:
     public void SetW1(int input, int hidden, double x) {
         WeightFlag = 1; // set this so save() will save weights
-        data[BaseIndex + input * NumHidden + hidden] = x;
+        W1[input][hidden] = x;
+        if (Net != null) Net.WeightsChanged();
     }
 
     public void SetW2(int hidden, int output, double x) {
         WeightFlag = 1; // set this so save() will save weights
-        data[BaseIndex + NumInput * NumHidden + hidden * NumOutput + output] = x;
+        W2[hidden][output] = x;
+        if (Net != null) Net.WeightsChanged();
     }
 
     // To get any application-specific data:
     public double GetSpecial(int i) {
         if (SpecialFlag == 0) return 0.0;
-        return data[BaseIndex + NumInput * NumHidden + NumHidden * NumOutput + i];
+        return Data.Get(BaseIndex + i);
     }
 
     // To add application-specific data:
     public void AddSpecial(double x) {
         // Make room in the data array for a new special data value:
-        int index = BaseIndex + NumInput * NumHidden + NumHidden * NumOutput + SpecialFlag;
-        for (int i = TopIndex - 1; i >= index; i--) {
-            data[i + 1] = data[i];
-        }
+        int index = TrainingBase;
+        EnsureCapacity(TopIndex + 1);
+        Data.Move(index, index + 1, TopIndex - index);
         TopIndex++;
 
-        data[index] = x;
+        Data.Set(index, x);
         SpecialFlag++;
+        TrainingBase++;
     }
 
     // To get training cases:
     public double GetInput(int training_case, int neuron_index) {
-        return data[BaseIndex + NumInput * NumHidden + NumHidden * NumOutput +
-                SpecialFlag +
-                training_case * (NumInput + NumOutput) +
-                neuron_index];
+        return Data.Get(Row(training_case) + neuron_index);
     }
 
     public double GetOutput(int training_case, int neuron_index) {
-        return data[BaseIndex + NumInput * NumHidden + NumHidden * NumOutput +
-                SpecialFlag +
-                training_case * (NumInput + NumOutput) +
-                NumInput +
-                neuron_index];
+        return Data.Get(Row(training_case) + TrainingInputs() + neuron_index);
+    }
+
+    /**
+     * Copies a run of training cases into arrays laid out as Neural.Train
+     * expects: TrainingInputs() inputs and NumOutput outputs per case.
+     *
+     * @param first The first case.
+     * @param count The number of cases wanted.
+     * @param ins   Receives the inputs.
+     * @param outs  Receives the outputs.
+     * @return The number of cases copied (fewer at the end of the cases).
+     */
+    public int GetBatch(int first, int count, double ins[], double outs[]) {
+        int ni = TrainingInputs();
+        int n = Math.max(0, Math.min(count, NumTraining - first));
+        for (int k = 0; k < n; k++) {
+            long row = Row(first + k);
+            Data.Read(row, ins, k * ni, ni);
+            Data.Read(row + ni, outs, k * NumOutput, NumOutput);
+        }
+        return n;
+    }
+
+    // Index in Data of a training case:
+    private long Row(int training_case) {
+        return TrainingBase + (long) training_case * (TrainingInputs() + NumOutput);
+    }
+
+    // The weight of a training case (1 unless the cases were compacted):
+    public int GetWeight(int training_case) {
+        return CaseWeights == null ? 1 : CaseWeights[training_case];
     }
 
     public void RemoveTraining(int num) {
@@ -139,31 +376,105 @@ public class NNfile {
             System.out.println("Error in RemoveTraining(" + num + ")");
             return;
         }
-        int index = BaseIndex + NumInput * NumHidden + NumHidden * NumOutput +
-                SpecialFlag +
-                num * (NumInput + NumOutput);
-        for (int i = index; i <= TopIndex - NumInput - NumOutput; i++) {
-            data[i] = data[i + NumInput + NumOutput];
-        }
-        TopIndex -= NumInput + NumOutput;
+        int size = TrainingInputs() + NumOutput;
+        long index = Row(num);
+        Data.Move(index + size, index, TopIndex - index - size);
+        TopIndex -= size;
+        if (CaseWeights != null)
+            System.arraycopy(CaseWeights, num + 1, CaseWeights, num, NumTraining - num - 1);
         NumTraining--;
     }
 
     public void AddTraining(double inputs[], double outputs[]) {
-        for (int i = 0; i < NumInput; i++)
-            data[TopIndex++] = inputs[i];
-        for (int o = 0; o < NumOutput; o++)
-            data[TopIndex++] = outputs[o];
+        AddTraining(inputs, outputs, 1);
+    }
+
+    public void AddTraining(double inputs[], double outputs[], int weight) {
+        EnsureCapacity(TopIndex + TrainingInputs() + NumOutput);
+        Data.Write(TopIndex, inputs, 0, TrainingInputs());
+        TopIndex += TrainingInputs();
+        Data.Write(TopIndex, outputs, 0, NumOutput);
+        TopIndex += NumOutput;
+        if (CaseWeights == null && weight != 1) {
+            CaseWeights = new int[NumTraining + 1];
+            java.util.Arrays.fill(CaseWeights, 1);
+        }
+        if (CaseWeights != null) {
+            if (CaseWeights.length <= NumTraining)
+                CaseWeights = java.util.Arrays.copyOf(CaseWeights, 2 * NumTraining + 1);
+            CaseWeights[NumTraining] = weight;
+        }
         NumTraining++;
     }
 
+    /**
+     * Merges training cases with identical inputs and outputs into one case
+     * whose weight is the sum of their weights, keeping the first of each
+     * group in place. Rows are hashed into an open addressing table of int
+     * indices, so this takes one pass over the cases and no per-case objects.
+     *
+     * @return The number of cases removed.
+     */
+    public int Compact() {
+        int size = TrainingInputs() + NumOutput;
+        int capacity = Integer.highestOneBit(Math.max(1, 2 * NumTraining)) << 1;
+        int table[] = new int[capacity]; // kept case + 1, 0 for an empty slot
+        long hashes[] = new long[NumTraining];
+        int weights[] = new int[NumTraining];
+        int kept = 0;
+        next_case:
+        for (int c = 0; c < NumTraining; c++) {
+            long row = Row(c);
+            long hash = size;
+            for (long j = row; j < row + size; j++)
+                hash = (hash ^ Double.doubleToLongBits(Data.Get(j))) * 0x9E3779B97F4A7C15L;
+            int slot = (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+            for (; table[slot] != 0; slot = (slot + 1) & (capacity - 1)) {
+                int k = table[slot] - 1;
+                if (hashes[k] == hash && SameRow(Row(k), row, size)) {
+                    weights[k] += GetWeight(c);
+                    continue next_case;
+                }
+            }
+            table[slot] = kept + 1;
+            hashes[kept] = hash;
+            weights[kept] = GetWeight(c);
+            if (kept != c)
+                Data.Move(row, Row(kept), size);
+            kept++;
+        }
+        int removed = NumTraining - kept;
+        NumTraining = kept;
+        TopIndex = Row(kept);
+        CaseWeights = java.util.Arrays.copyOf(weights, kept);
+        return removed;
+    }
+
+    private boolean SameRow(long a, long b, int size) {
+        for (int j = 0; j < size; j++)
+            if (Double.doubleToLongBits(Data.Get(a + j)) != Double.doubleToLongBits(Data.Get(b + j)))
+                return false;
+        return true;
+    }
+
+    // Grows Data so that it holds at least size values:
+    private void EnsureCapacity(long size) {
+        if (size > Data.Length())
+            Data.Grow(size);
+    }
+
     void ReadFile(InputStream inp)
             throws IOException, FileFormatException {
         System.out.println("Entered ReadFile");
-        StreamTokenizer st = new StreamTokenizer(inp);
+        StreamTokenizer st = new StreamTokenizer(new BufferedReader(new InputStreamReader(inp)));
+        // Every value is read as one word and parsed with Double.parseDouble,
+        // so what Save writes with Double.toString (exponents included) reads
+        // back exactly:
+        st.resetSyntax();
+        st.wordChars(33, 255);
+        st.whitespaceChars(0, ' ');
         st.commentChar('#');
         st.eolIsSignificant(false);
-        st.parseNumbers();
         System.out.println("Before while");
         process:
         while (true) {
@@ -171,9 +482,15 @@ public class NNfile {
                 case StreamTokenizer.TT_EOL:
                     System.out.println("EOF found");
                     break process;
-                case StreamTokenizer.TT_NUMBER:
-                    double x = st.nval;
-                    data[TopIndex++] = x;
+                case StreamTokenizer.TT_WORD:
+                    double x;
+                    try {
+                        x = Double.parseDouble(st.sval);
+                    } catch (NumberFormatException e) {
+                        throw new FileFormatException("line " + st.lineno() +
+                                ": not a number: " + st.sval);
+                    }
+                    Append(x);
                     break;
                 default:
                     System.out.println("Token (default):" + st.sval);
@@ -186,6 +503,50 @@ public class NNfile {
             throw new FileFormatException(st.toString());
     }
 
+    // Stores a value read from the file, unless it belongs to a training
+    // case outside the shard being loaded:
+    private void Append(double x) {
+        if (ShardCount != 1) {
+            if (RawStart < 0) RawStart = RawTrainingStart();
+            if (RawStart >= 0 && RawCount >= RawStart) {
+                long row = (RawCount++ - RawStart) / RawRowSize;
+                if (ShardCount == 0 || row % ShardCount != ShardIndex) return;
+            } else {
+                RawCount++;
+            }
+        }
+        EnsureCapacity(TopIndex + 1);
+        Data.Set(TopIndex++, x);
+    }
+
+    // Returns the index in the file's values of the first training case and
+    // sets RawRowSize, or returns -1 while the header is not complete:
+    private long RawTrainingStart() {
+        if (TopIndex < 4) return -1;
+        int layers = (int) Data.Get(0);
+        int k = 1 + layers;
+        if (TopIndex < k + 3) return -1;
+        int flag = (int) Data.Get(k), special = (int) Data.Get(k + 1);
+        k += 3;
+        int num_input = (int) Data.Get(1), num_hidden = (int) Data.Get(2);
+        int num_output = (int) Data.Get(3), inputs = num_input;
+        long weights = (long) num_input * num_hidden + (long) num_hidden * num_output;
+        if ((flag & CONV_FLAG) != 0) {
+            if (TopIndex < k + 1) return -1;
+            int n = (int) Data.Get(k++);
+            if (TopIndex < k + 7L * n) return -1;
+            for (int l = 0; l < n; l++, k += 7) {
+                int channels = (int) Data.Get(k), filters = (int) Data.Get(k + 3);
+                int kernel = (int) Data.Get(k + 4);
+                if (l == 0) inputs = channels * (int) Data.Get(k + 1) * (int) Data.Get(k + 2);
+                weights += (long) kernel * kernel * channels * filters + filters;
+            }
+        }
+        if ((flag & ~(SOFTMAX_FLAG | CONV_FLAG | CASE_WEIGHTS_FLAG)) == 0) weights = 0;
+        RawRowSize = inputs + num_output + ((flag & CASE_WEIGHTS_FLAG) != 0 ? 1 : 0);
+        return k + weights + special;
+    }
+
     /**
      * Saves the neural network data to a file.
      *
@@ -201,9 +562,20 @@ public class NNfile {
                 ps.println(NumNeuronsPerLayer[i] +
                         "  # neurons in layer " + i);
             }
-            ps.println("1  # weight flag"); // always write out weights
+            // always write out weights:
+            boolean case_weights = CaseWeights != null && NumTraining > 0;
+            ps.println((1 | (SoftmaxOutput ? SOFTMAX_FLAG : 0) |
+                    (Convs != null ? CONV_FLAG : 0) |
+                    (case_weights ? CASE_WEIGHTS_FLAG : 0)) + "  # weight flag");
             ps.println(SpecialFlag + "  # special data flag");
             ps.println(NumTraining + "  # number of training cases in file");
+            if (Convs != null) {
+                ps.println(Convs.length + "  # convolution layers");
+                for (ConvLayer layer : Convs)
+                    ps.println(layer.InChannels + " " + layer.InHeight + " " + layer.InWidth + " " +
+                            layer.Filters + " " + layer.Kernel + " " + layer.Pad + " " + layer.Pool +
+                            "  # channels height width filters kernel pad pool");
+            }
 
             ps.println("\n# Input layer to hidden layer weights:\n");
             for (int i = 0; i < NumInput; i++) {
@@ -219,6 +591,19 @@ public class NNfile {
                 }
                 ps.print("\n");
             }
+            if (Convs != null) {
+                for (int l = 0; l < Convs.length; l++) {
+                    ps.println("\n# Convolution layer " + l + " kernels and biases:\n");
+                    for (double row[] : Convs[l].K) {
+                        for (double x : row)
+                            ps.print(x + " ");
+                        ps.print("\n");
+                    }
+                    for (double x : Convs[l].Bias)
+                        ps.print(x + " ");
+                    ps.print("\n");
+                }
+            }
             if (SpecialFlag > 0) {
                 ps.println("\n# Special network data:\n");
                 for (int i = 0; i < SpecialFlag; i++) {
@@ -226,15 +611,17 @@ public class NNfile {
                 }
                 ps.println("\n");
             }
-            ps.println("\n# Training data:\n");
+            ps.println(case_weights ? "\n# Training data (inputs, outputs, weight):\n"
+                    : "\n# Training data:\n");
             for (int i = 0; i < NumTraining; i++) {
-                for (int j = 0; j < NumInput; j++) {
+                for (int j = 0; j < TrainingInputs(); j++) {
                     ps.print(GetInput(i, j) + " ");
                 }
                 ps.print("   ");
                 for (int j = 0; j < NumOutput; j++) {
                     ps.print(GetOutput(i, j) + " ");
                 }
+                if (case_weights) ps.print("   " + GetWeight(i));
                 ps.println("");
             }
             System.out.println("Done writing to output file.");
@@ -0,0 +1,388 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The NNtool class is a command line entry point for training and scoring
+ * networks without a display. It never touches java.awt, so it can run in
+ * containers and on headless servers.
+ *
+ *   java NNtool train <model> [options]
+ *   java NNtool score <model> [options]
+ *
+ * Models are NNfile text files, or ModelArchive files when the name ends
+ * in ".nnz". The data defaults to the model's own training cases.
+ *
+ * Options:
+ *   -data <file>           training cases from another NNfile / archive
+ *   -idx <images> <labels> cases from an IDX image/label file pair
+ *   -epochs <n>            maximum number of training epochs (3000)
+ *   -target <error>        stop once the epoch error is below this (0.1)
+ *   -patience <n>          stop after n epochs without improvement (off)
+ *   -time <seconds>        stop after this much training time (off)
+ *   -optimizer <name>      sgd, momentum, nesterov or adam (sgd)
+ *   -rate <r>              learning rate (0.5 for sgd/momentum, 0.01 for adam)
+ *   -softmax               train a softmax output layer on the cross-entropy loss
+ *   -compact               merge identical cases into weighted ones (NNfile.Compact)
+ *   -freeze <w1|w2|w1,w2>  leave these weight matrices unchanged while training
+ *   -compile               score with a forward pass specialized for the model
+ *                          (CompiledForward; score only)
+ *   -threads <n>           threads used for scoring and evaluation (all cores; score
+ *                          only, as training runs one SGD step per case in order)
+ *   -out <file>            trained model (train) or per case outputs (score)
+ *
+ * Both commands finish with an Evaluator report (accuracy, loss, confusion
+ * matrix and per-class precision / recall) over the data.
+ */
+public class NNtool extends Object {
+
+    protected Neural Net;
+    protected double Ins[];
+    protected double Outs[];
+    protected int NumCases;
+    protected int Weights[] = null; // case weights, from a compacted file
+    protected IdxDataset Idx = null;
+
+    public int MaxEpochs = 3000;
+    public double TargetError = 0.1;
+    public int Patience = 0;
+    public double TimeLimit = 0.0;
+    public String OptimizerName = "sgd";
+    public double Rate = -1.0;
+    public int NumThreads = Runtime.getRuntime().availableProcessors();
+    // Cases decoded at a time when scoring IDX data:
+    public int BatchSize = 4096;
+    public String OutFile = null;
+
+    /**
+     * Loads a network from an NNfile or (for names ending in .nnz) a
+     * ModelArchive. Networks with convolution layers are rejected, as
+     * NNtool trains and scores plain Neural networks only.
+     */
+    public static Neural LoadModel(String file_name) throws IOException, FileFormatException {
+        NNfile file;
+        if (file_name.endsWith(".nnz")) {
+            file = ModelArchive.Read(file_name);
+        } else {
+            if (!new File(file_name).canRead())
+                throw new FileNotFoundException(file_name);
+            try {
+                file = new NNfile(file_name);
+            } catch (IllegalArgumentException e) {
+                throw new FileFormatException(e.getMessage());
+            }
+        }
+        if (file.Convs != null)
+            throw new FileFormatException(file_name + " has convolution layers; use ConvNeural");
+        return new Neural(file);
+    }
+
+    /**
+     * Saves a network as an NNfile or (for names ending in .nnz) a ModelArchive,
+     * with bfloat16 weights and 8 bit training cases.
+     */
+    public static void SaveModel(Neural net, String file_name) throws IOException {
+        if (net.NeuralFile == null)
+            net.NeuralFile = new NNfile(net.NumInputs, net.NumHidden, net.NumOutputs);
+        if (file_name.endsWith(".nnz")) {
+            net.NeuralFile.ShareWeights(net.W1, net.W2);
+            net.NeuralFile.Net = net;
+            net.NeuralFile.SoftmaxOutput = net.SoftmaxOutput;
+            if (net.NeuralFile.NumTraining > 0)
+                System.out.println("Warning: " + file_name +
+                        " keeps the training cases quantized to 8 bits");
+            ModelArchive.Write(net.NeuralFile, file_name,
+                    ModelArchive.BFLOAT16, ModelArchive.TRAINING_INT8);
+        } else {
+            net.Save(file_name);
+        }
+    }
+
+    /**
+     * Trains the network until one of the stop criteria is met.
+     *
+     * @return The error of the last epoch.
+     */
+    public double Train() {
+        if (OptimizerName.equals("momentum") || OptimizerName.equals("nesterov")) {
+            Net.WeightOptimizer = new MomentumOptimizer(Rate > 0 ? Rate : 0.5, 0.9,
+                    OptimizerName.equals("nesterov"));
+        } else if (OptimizerName.equals("adam")) {
+            Net.WeightOptimizer = new AdamOptimizer(Rate > 0 ? Rate : 0.01);
+        } else if (Rate > 0) {
+            Net.LearningRate = Rate;
+        }
+        long start = System.nanoTime();
+        double best = Double.MAX_VALUE, error = Double.MAX_VALUE;
+        int since_best = 0;
+        for (int epoch = 0; epoch < MaxEpochs; epoch++) {
+            error = Idx != null ? Idx.TrainEpoch(Net, 256) : Net.Train(Ins, Outs, Weights, NumCases);
+            if ((epoch % 10) == 0)
+                System.out.println("Output error for iteration " + epoch + " =" + error);
+            if (error < TargetError) {
+                System.out.println("Target error reached after " + (epoch + 1) + " epochs");
+                break;
+            }
+            if (error < best) {
+                best = error;
+                since_best = 0;
+            } else if (Patience > 0 && ++since_best >= Patience) {
+                System.out.println("No improvement for " + Patience + " epochs");
+                break;
+            }
+            if (TimeLimit > 0 && (System.nanoTime() - start) / 1e9 > TimeLimit) {
+                System.out.println("Time limit reached after " + (epoch + 1) + " epochs");
+                break;
+            }
+        }
+        return error;
+    }
+
+    /**
+     * Runs the network on every case, in parallel chunks, without changing it.
+     *
+     * @return The outputs, NumCases * NumOutputs values.
+     */
+    public double[] Score() throws Exception {
+        return Score(Ins, NumCases);
+    }
+
+    /**
+     * Runs the network on a set of cases, in parallel chunks, without changing it.
+     *
+     * @param ins       The inputs, num_cases * NumInputs values.
+     * @param num_cases The number of cases.
+     * @return The outputs, num_cases * NumOutputs values.
+     */
+    public double[] Score(double ins[], int num_cases) throws Exception {
+        int ni = Net.NumInputs, no = Net.NumOutputs;
+        double scores[] = new double[num_cases * no];
+        int chunk = Math.max(64, (num_cases + NumThreads - 1) / NumThreads);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, NumThreads));
+        try {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int first = 0; first < num_cases; first += chunk) {
+                final int f = first, n = Math.min(chunk, num_cases - first);
+                tasks.add(() -> {
+                    double x[] = new double[n * ni];
+                    double y[] = new double[n * no];
+                    System.arraycopy(ins, f * ni, x, 0, n * ni);
+                    Net.ForwardPass(x, y, n);
+                    System.arraycopy(y, 0, scores, f * no, n * no);
+                    return null;
+                });
+            }
+            for (Future<Void> result : pool.invokeAll(tasks))
+                result.get();
+        } finally {
+            pool.shutdown();
+        }
+        return scores;
+    }
+
+    /**
+     * Scores every case and writes the scores, one case per line: the index
+     * of the largest output, then the outputs. IDX data is decoded and
+     * scored BatchSize cases at a time.
+     */
+    public void WriteScores(PrintStream ps) throws Exception {
+        if (Idx == null) {
+            WriteScores(Score(), NumCases, ps);
+            return;
+        }
+        double ins[] = new double[BatchSize * Idx.NumInputs];
+        double outs[] = new double[BatchSize * Idx.NumOutputs];
+        for (int first = 0; first < NumCases; first += BatchSize) {
+            int n = Idx.GetBatch(first, BatchSize, ins, outs);
+            WriteScores(Score(ins, n), n, ps);
+        }
+    }
+
+    /**
+     * Writes scores, one case per line: the index of the largest output,
+     * then the outputs.
+     */
+    public void WriteScores(double scores[], int num_cases, PrintStream ps) {
+        int no = Net.NumOutputs;
+        for (int k = 0; k < num_cases; k++) {
+            int best = 0;
+            for (int o = 1; o < no; o++)
+                if (scores[k * no + o] > scores[k * no + best]) best = o;
+            ps.print(best);
+            for (int o = 0; o < no; o++)
+                ps.print(" " + scores[k * no + o]);
+            ps.println();
+        }
+    }
+
+    /**
+     * Evaluates the network on the cases with an Evaluator; IDX data is
+     * decoded and evaluated BatchSize cases at a time.
+     */
+    public Evaluation Evaluate() {
+        Evaluator evaluator = new Evaluator(Net);
+        evaluator.NumThreads = NumThreads;
+        if (Idx == null)
+            return evaluator.Evaluate(Ins, Outs, Weights, NumCases);
+        Evaluation result = new Evaluation(Net.NumOutputs);
+        double ins[] = new double[BatchSize * Idx.NumInputs];
+        double outs[] = new double[BatchSize * Idx.NumOutputs];
+        for (int first = 0; first < NumCases; first += BatchSize) {
+            int n = Idx.GetBatch(first, BatchSize, ins, outs);
+            result.Merge(evaluator.Evaluate(ins, outs, n));
+        }
+        return result;
+    }
+
+    // Copies the training cases of an NNfile into flat arrays; false if they do not fit Net:
+    private boolean UseCases(NNfile file, boolean compact) {
+        if (file.Convs != null || file.NumInput != Net.NumInputs || file.NumOutput != Net.NumOutputs) {
+            System.out.println("Error: the data does not match the network's " + Net.NumInputs +
+                    " inputs and " + Net.NumOutputs + " outputs" +
+                    (file.Convs != null ? " (it has convolution input grids)" : ""));
+            return false;
+        }
+        if (compact) {
+            int removed = file.Compact();
+            System.out.println("Compacted " + (file.NumTraining + removed) + " cases into " +
+                    file.NumTraining);
+        }
+        NumCases = file.NumTraining;
+        Weights = file.CaseWeights;
+        Ins = new double[NumCases * file.NumInput];
+        Outs = new double[NumCases * file.NumOutput];
+        file.GetBatch(0, NumCases, Ins, Outs);
+        return true;
+    }
+
+    // Uses the network's own training cases, without copying them; with
+    // compact the model's file is compacted and the network reloads them:
+    private void UseOwnCases(boolean compact) {
+        NNfile file = Net.NeuralFile;
+        if (compact) {
+            int removed = file.Compact();
+            System.out.println("Compacted " + (file.NumTraining + removed) + " cases into " +
+                    file.NumTraining);
+            Net.LoadTrainingCases();
+        } else if (Net.InputTraining == null && Net.NumTraining > 0) {
+            Net.LoadTrainingCases(); // from off-heap storage
+        }
+        NumCases = Net.NumTraining;
+        Weights = Net.TrainingWeights;
+        Ins = Net.InputTraining;
+        Outs = Net.OutputTraining;
+    }
+
+    private static void Usage() {
+        System.out.println("usage: java NNtool train|score <model> [-data file] [-idx images labels]");
+        System.out.println("       [-epochs n] [-target e] [-patience n] [-time s] [-optimizer name]");
+        System.out.println("       [-rate r] [-softmax] [-compact] [-freeze w1|w2] [-compile] [-threads n]");
+        System.out.println("       [-out file]");
+    }
+
+    public static void main(String argv[]) throws Exception {
+        if (argv.length < 2 || !(argv[0].equals("train") || argv[0].equals("score"))) {
+            Usage();
+            return;
+        }
+        NNtool tool = new NNtool();
+        try {
+            tool.Net = LoadModel(argv[1]);
+        } catch (FileFormatException e) {
+            System.out.println("Error: " + e.getMessage());
+            return;
+        }
+        String data = null, images = null, labels = null;
+        boolean compile = false, compact = false, threads = false;
+        for (int a = 2; a < argv.length; a++) {
+            String opt = argv[a];
+            if (opt.equals("-idx") && a + 2 < argv.length) {
+                images = argv[++a];
+                labels = argv[++a];
+                continue;
+            }
+            if (opt.equals("-softmax")) {
+                tool.Net.SoftmaxOutput = true;
+                continue;
+            }
+            if (opt.equals("-compact")) {
+                compact = true;
+                continue;
+            }
+            if (opt.equals("-compile")) {
+                compile = true;
+                continue;
+            }
+            if (a + 1 >= argv.length) {
+                Usage();
+                return;
+            }
+            String value = argv[++a];
+            if (opt.equals("-data")) data = value;
+            else if (opt.equals("-epochs")) tool.MaxEpochs = Integer.parseInt(value);
+            else if (opt.equals("-target")) tool.TargetError = Double.parseDouble(value);
+            else if (opt.equals("-patience")) tool.Patience = Integer.parseInt(value);
+            else if (opt.equals("-time")) tool.TimeLimit = Double.parseDouble(value);
+            else if (opt.equals("-optimizer")) tool.OptimizerName = value;
+            else if (opt.equals("-rate")) tool.Rate = Double.parseDouble(value);
+            else if (opt.equals("-threads")) {
+                tool.NumThreads = Integer.parseInt(value);
+                threads = true;
+            }
+            else if (opt.equals("-out")) tool.OutFile = value;
+            else if (opt.equals("-freeze")) {
+                tool.Net.FrozenW1 = value.toLowerCase().contains("w1");
+                tool.Net.FrozenW2 = value.toLowerCase().contains("w2");
+            }
+            else {
+                Usage();
+                return;
+            }
+        }
+
+        if (argv[0].equals("train") && threads) {
+            System.out.println("Error: -threads applies to score only; training runs one SGD " +
+                    "step per case in order (see ParameterServer for training on several threads)");
+            return;
+        }
+        if (argv[0].equals("train") && compile) {
+            System.out.println("Error: -compile applies to score only; the trained weights " +
+                    "change every step");
+            return;
+        }
+
+        if (images != null) {
+            tool.Idx = new IdxDataset(images, labels, tool.Net.NumOutputs);
+            if (tool.Idx.NumInputs != tool.Net.NumInputs) {
+                System.out.println("Error: IDX images have " + tool.Idx.NumInputs +
+                        " pixels, the network has " + tool.Net.NumInputs + " inputs");
+                return;
+            }
+            tool.NumCases = tool.Idx.NumCases;
+        } else if (data != null) {
+            NNfile cases = data.endsWith(".nnz") ? ModelArchive.Read(data) : new NNfile(data);
+            if (!tool.UseCases(cases, compact)) return;
+        } else {
+            tool.UseOwnCases(compact);
+        }
+
+        if (argv[0].equals("train")) {
+            System.out.println("Final error: " + tool.Train());
+            if (tool.OutFile != null) SaveModel(tool.Net, tool.OutFile);
+            System.out.print(tool.Evaluate().Report(null));
+        } else {
+            // falls back to the ordinary loops if this returns null:
+            if (compile) tool.Net.Compiled = CompiledForward.Compile(tool.Net);
+            if (tool.OutFile != null) {
+                PrintStream ps = new PrintStream(new FileOutputStream(tool.OutFile));
+                tool.WriteScores(ps);
+                ps.close();
+            }
+            System.out.print(tool.Evaluate().Report(null));
+        }
+    }
+}
@@ -28,13 +28,66 @@ class Neural extends Object {
 
     protected double InputTraining[];
     protected double OutputTraining[];
+    // Weight of each training case (NNfile.CaseWeights), null when all are 1:
+    protected int TrainingWeights[];
 
     // mask of training examples to ignore (true -> ignore):
     public boolean IgnoreTraining[] = null;
     // mask of Input neurons to ignore:
     public boolean IgnoreInput[] = null;
+    // mask of pruned input to hidden weights (true -> held at zero):
+    public boolean PrunedW1[][] = null;
     public NNfile NeuralFile = null;
 
+    // Step size of the default (plain SGD) weight update:
+    public double LearningRate = 0.5;
+    // Optional replacement for the plain SGD update (null -> plain SGD):
+    public Optimizer WeightOptimizer = null;
+
+    // Results computed from the weights (InferenceCache, BinaryForward,
+    // CompiledForward) are valid while this is unchanged. It is incremented
+    // by WeightsChanged, NNfile.SetW1 / SetW2 of NeuralFile, weight
+    // initialization, and before and after each training epoch (see
+    // BeginEpoch and EndEpoch); code that writes W1 or W2 directly must call
+    // WeightsChanged afterwards:
+    public volatile int WeightsVersion = 0;
+    // Optional cache used by CachedForwardPass:
+    public InferenceCache Cache = null;
+    // Optional kernel for binary inputs used by CachedForwardPass:
+    public BinaryForward BinaryKernel = null;
+    // Optional specialized forward pass for frozen weights (see CompiledForward):
+    public CompiledForward Compiled = null;
+
+    // Output layer: the shifted sigmoid trained on the error (false), or
+    // softmax trained on the cross-entropy loss (true):
+    public boolean SoftmaxOutput = false;
+    // log(Outputs[o]) for softmax outputs, set by ForwardPass():
+    protected double LogOutputs[];
+
+    // Weight matrices left unchanged by training, e.g. to retrain only W2
+    // when adapting a trained network to new characters:
+    public boolean FrozenW1 = false;
+    public boolean FrozenW2 = false;
+    // Incremented whenever W1 (W2) may have changed (see WeightsChanged and Train):
+    protected int W1Version = 0;
+    protected int W2Version = 0;
+    // Hidden sums of the training cases, computed once while W1 is frozen
+    // (NumHidden values per case; see HiddenSums), and what they were computed from:
+    protected double HiddenCache[] = null;
+    protected double HiddenCacheIns[] = null;
+    protected int HiddenCacheCases = 0;
+    protected int HiddenCacheVersion = 0;
+
+    // Kernel variants for this network's shape, per weight matrix (index 0
+    // for W1, 1 for W2; see KernelTuner): batched and single case forward
+    // passes and the weight update:
+    public int ForwardKernel[] = {KernelTuner.FORWARD_ROWS, KernelTuner.FORWARD_ROWS};
+    public int ForwardBlock[] = {32, 32};
+    public int SingleKernel[] = {KernelTuner.FORWARD_ROWS, KernelTuner.FORWARD_ROWS};
+    public int UpdateKernel[] = {KernelTuner.UPDATE_COLUMNS, KernelTuner.UPDATE_COLUMNS};
+    // Sigmoid of the hidden sums, scratch for OutputLayer:
+    protected double HiddenOut[] = null;
+
     /**
      * Creates a new instance of Neural with default values.
      */
@@ -48,59 +101,77 @@ class Neural extends Object {
      * @param file_name The name of the file containing the neural network configuration.
      */
     Neural(String file_name) {
-        NeuralFile = new NNfile(file_name);
+        this(new NNfile(file_name));
+    }
+
+    /**
+     * Creates a new instance of Neural from an already loaded NNfile object.
+     * Files with convolution layers are rejected (load them with ConvNeural):
+     * their training cases hold input grids rather than NumInputs values.
+     *
+     * @param file The network configuration, weights and training cases.
+     */
+    Neural(NNfile file) {
+        this(file, false);
+    }
+
+    /**
+     * Creates the network of an NNfile; with conv_dense the file may have
+     * convolution layers, and this is the dense network behind them, whose
+     * training inputs are the input grids (see ConvNeural).
+     */
+    Neural(NNfile file, boolean conv_dense) {
+        if (file.Convs != null && !conv_dense)
+            throw new IllegalArgumentException("the network has convolution layers; " +
+                    "load it with ConvNeural");
+        NeuralFile = file;
         NumInputs = NeuralFile.NumInput;
         NumHidden = NeuralFile.NumHidden;
         NumOutputs = NeuralFile.NumOutput;
         NumTraining = NeuralFile.NumTraining;
         WeightsFlag = NeuralFile.WeightFlag;
         SpecialFlag = NeuralFile.SpecialFlag;
+        SoftmaxOutput = NeuralFile.SoftmaxOutput;
 
         Inputs = new double[NumInputs];
         Hidden = new double[NumHidden];
         Outputs = new double[NumOutputs];
-        W1 = new double[NumInputs][NumHidden];
-        W2 = new double[NumHidden][NumOutputs];
-        // Retrieve the weight values from the NNfile object:
-        if (WeightsFlag != 0) {
-            for (int i = 0; i < NumInputs; i++) {
-                for (int h = 0; h < NumHidden; h++) {
-                    W1[i][h] = NeuralFile.GetW1(i, h);
-                }
-            }
-            for (int h = 0; h < NumHidden; h++) {
-                for (int o = 0; o < NumOutputs; o++) {
-                    W2[h][o] = NeuralFile.GetW2(h, o);
-                }
-            }
-        } else {
+        // Work directly on the NNfile object's weight arrays (no copy):
+        W1 = NeuralFile.W1;
+        W2 = NeuralFile.W2;
+        NeuralFile.Net = this;
+        if (WeightsFlag == 0) {
             randomizeWeights();
         }
 
         output_errors = new double[NumOutputs];
         hidden_errors = new double[NumHidden];
 
-        // Get the training cases (if any) from the training file:
-        LoadTrainingCases();
+        // Get the training cases (if any) from the training file; cases in
+        // off-heap storage stay there and are read a batch at a time:
+        if (NeuralFile.TrainingOnHeap()) {
+            LoadTrainingCases();
+        } else {
+            NumTraining = NeuralFile.NumTraining;
+            TrainingWeights = NeuralFile.CaseWeights;
+        }
+        if (KernelTuner.Enabled) KernelTuner.Apply(this);
     }
 
     /**
-     * Loads the training cases from the training file.
+     * Loads the training cases from the training file. If the file has
+     * convolution layers (see ConvNeural), the training inputs are the
+     * convolution input grids rather than NumInputs values per case.
      */
     public void LoadTrainingCases() {
         NumTraining = NeuralFile.NumTraining;
+        int num_inputs = NeuralFile.TrainingInputs();
         if (NumTraining > 0) {
-            InputTraining = new double[NumTraining * NumInputs];
+            InputTraining = new double[NumTraining * num_inputs];
             OutputTraining = new double[NumTraining * NumOutputs];
+            NeuralFile.GetBatch(0, NumTraining, InputTraining, OutputTraining);
         }
-        int ic = 0, oc = 0;
-
-        for (int k = 0; k < NumTraining; k++) {
-            for (int i = 0; i < NumInputs; i++)
-                InputTraining[ic++] = NeuralFile.GetInput(k, i);
-            for (int o = 0; o < NumOutputs; o++)
-                OutputTraining[oc++] = NeuralFile.GetOutput(k, o);
-        }
+        TrainingWeights = NeuralFile.CaseWeights;
     }
 
     /**
@@ -125,6 +196,7 @@ class Neural extends Object {
 
         // Randomize weights here:
         randomizeWeights();
+        if (KernelTuner.Enabled) KernelTuner.Apply(this);
     }
 
     /**
@@ -136,16 +208,14 @@ class Neural extends Object {
         if (NeuralFile == null) {
             System.out.println("Error: no NeuralFile object in Neual::Save");
         } else {
-            for (int i = 0; i < NumInputs; i++) {
-                for (int h = 0; h < NumHidden; h++) {
-                    NeuralFile.SetW1(i, h, W1[i][h]);
-                }
-            }
-            for (int h = 0; h < NumHidden; h++) {
-                for (int o = 0; o < NumOutputs; o++) {
-                    NeuralFile.SetW2(h, o, W2[h][o]);
-                }
+            // The weights are shared with NeuralFile, so there is nothing
+            // to copy unless NeuralFile was attached after construction:
+            if (NeuralFile.W1 != W1 || NeuralFile.W2 != W2) {
+                NeuralFile.ShareWeights(W1, W2);
+                NeuralFile.Net = this;
             }
+            NeuralFile.WeightFlag = 1;
+            NeuralFile.SoftmaxOutput = SoftmaxOutput;
             NeuralFile.Save(output_file);
         }
     }
@@ -154,37 +224,304 @@ class Neural extends Object {
      * Randomizes the weights of the neural network.
      */
     public void randomizeWeights() {
-        // Randomize weights here:
-        for (int ii = 0; ii < NumInputs; ii++)
-            for (int hh = 0; hh < NumHidden; hh++)
-                W1[ii][hh] = 0.1 * Math.random() - 0.05;
-        for (int hh = 0; hh < NumHidden; hh++)
-            for (int oo = 0; oo < NumOutputs; oo++)
-                W2[hh][oo] = 0.1 * Math.random() - 0.05;
+        randomizeWeights(WeightInit.UNIFORM, WeightInit.RandomSeed());
+    }
+
+    /**
+     * Randomizes the weights of the neural network reproducibly from a seed.
+     *
+     * @param seed The seed for the random number generator.
+     */
+    public void randomizeWeights(long seed) {
+        randomizeWeights(WeightInit.UNIFORM, seed);
+    }
+
+    /**
+     * Randomizes the weights of the neural network with a given scheme.
+     *
+     * @param scheme WeightInit.UNIFORM, WeightInit.XAVIER or WeightInit.HE.
+     * @param seed   The master seed; the same seed gives the same weights.
+     */
+    public void randomizeWeights(int scheme, long seed) {
+        new WeightInit(scheme, seed).Apply(this);
     }
 
     /**
      * Performs a forward pass through the neural network.
      */
     public void ForwardPass() {
-        int i, h, o;
+        int h;
         for (h = 0; h < NumHidden; h++) {
             Hidden[h] = 0.0;
         }
-        for (i = 0; i < NumInputs; i++) {
-            for (h = 0; h < NumHidden; h++) {
-                Hidden[h] += Inputs[i] * W1[i][h];
-            }
-        }
+        MatMul(Inputs, W1, Hidden, 1, NumInputs, NumHidden, SingleKernel[0], 0);
+        OutputLayer();
+    }
+
+    /**
+     * Computes Outputs from the hidden sums in Hidden: the second half of ForwardPass.
+     */
+    protected void OutputLayer() {
+        int h, o;
         for (o = 0; o < NumOutputs; o++)
             Outputs[o] = 0.0;
-        for (h = 0; h < NumHidden; h++) {
-            for (o = 0; o < NumOutputs; o++) {
-                Outputs[o] += Sigmoid(Hidden[h]) * W2[h][o];
+        if (HiddenOut == null || HiddenOut.length != NumHidden) HiddenOut = new double[NumHidden];
+        for (h = 0; h < NumHidden; h++)
+            HiddenOut[h] = Sigmoid(Hidden[h]);
+        MatMul(HiddenOut, W2, Outputs, 1, NumHidden, NumOutputs, SingleKernel[1], 0);
+        if (SoftmaxOutput) {
+            if (LogOutputs == null) LogOutputs = new double[NumOutputs];
+            Softmax(Outputs, 0, NumOutputs, LogOutputs);
+        } else {
+            for (o = 0; o < NumOutputs; o++)
+                Outputs[o] = Sigmoid(Outputs[o]);
+        }
+    }
+
+    /**
+     * Applies the output layer activation (sigmoid or softmax) in place to
+     * the summed inputs of one case's output neurons.
+     *
+     * @param outs The summed inputs; receives the outputs.
+     * @param base The index of the case's first output neuron in outs.
+     */
+    public void ActivateOutputs(double outs[], int base) {
+        if (SoftmaxOutput) {
+            Softmax(outs, base, NumOutputs, null);
+        } else {
+            for (int o = base; o < base + NumOutputs; o++)
+                outs[o] = Sigmoid(outs[o]);
+        }
+    }
+
+    /**
+     * Replaces z[base .. base + n - 1] by its softmax. The largest value is
+     * subtracted before exponentiation, so nothing overflows, and the log
+     * probabilities are computed from the shifted values rather than by
+     * taking the log of probabilities that may have underflowed to zero.
+     *
+     * @param z     The values; receives the probabilities.
+     * @param base  The index of the first value.
+     * @param n     The number of values.
+     * @param log_p Receives the log probabilities (n values), or null.
+     */
+    public static void Softmax(double z[], int base, int n, double log_p[]) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int o = base; o < base + n; o++)
+            if (z[o] > max) max = z[o];
+        double sum = 0.0;
+        for (int o = base; o < base + n; o++)
+            sum += Math.exp(z[o] - max);
+        double log_sum = Math.log(sum);
+        for (int o = 0; o < n; o++) {
+            double shifted = z[base + o] - max - log_sum;
+            if (log_p != null) log_p[o] = shifted;
+            z[base + o] = Math.exp(shifted);
+        }
+    }
+
+    /**
+     * Converts the targets of one case into the class distribution used by
+     * the cross-entropy loss: negative targets count as zero and the rest
+     * are scaled to sum to one, so one-hot targets like testHand's +-0.4
+     * select their class. If no target is positive the distribution is uniform.
+     *
+     * @param outs    The targets.
+     * @param base    The index of the case's first target in outs.
+     * @param targets Receives the distribution (NumOutputs values).
+     */
+    public void SoftmaxTargets(double outs[], int base, double targets[]) {
+        double sum = 0.0;
+        for (int o = 0; o < NumOutputs; o++) {
+            targets[o] = Math.max(0.0, outs[base + o]);
+            sum += targets[o];
+        }
+        for (int o = 0; o < NumOutputs; o++)
+            targets[o] = sum > 0.0 ? targets[o] / sum : 1.0 / NumOutputs;
+    }
+
+    /**
+     * Marks the weights as changed, so results cached for the old weights
+     * are no longer used. Call this after modifying W1 or W2 directly.
+     */
+    public void WeightsChanged() {
+        WeightsVersion++;
+        W1Version++;
+        W2Version++;
+    }
+
+    /**
+     * Starts a training epoch: marks the weights that training will change
+     * as changed (only the matrices that are not frozen) and starts
+     * WeightOptimizer's epoch.
+     */
+    protected void BeginEpoch() {
+        TrainedWeightsChanged();
+        if (WeightOptimizer != null) WeightOptimizer.BeginEpoch(this);
+    }
+
+    /**
+     * Ends a training epoch: marks the trained weights as changed again, so
+     * results computed from them while the epoch ran are not used.
+     */
+    protected void EndEpoch() {
+        TrainedWeightsChanged();
+    }
+
+    private void TrainedWeightsChanged() {
+        WeightsVersion++;
+        if (!FrozenW1) W1Version++;
+        if (!FrozenW2) W2Version++;
+    }
+
+    /**
+     * Performs a forward pass through the neural network, answering from
+     * Cache when the same inputs were seen with the current weights, then
+     * trying Compiled (while the weights are the ones it was compiled for)
+     * and BinaryKernel (when the inputs are binary). Without any of them
+     * this is the same as ForwardPass.
+     */
+    public void CachedForwardPass() {
+        if (Cache != null && Cache.Lookup(this)) return;
+        if ((Compiled == null || !Compiled.ForwardPass(this)) &&
+                (BinaryKernel == null || !BinaryKernel.ForwardPass(this)))
+            ForwardPass();
+        if (Cache != null) Cache.Store(this);
+    }
+
+    /**
+     * Performs a forward pass for a batch of cases without touching the
+     * Inputs, Hidden and Outputs arrays, so it may be called from several
+     * threads while the weights are not being trained. Each weight row is
+     * loaded once per batch rather than once per case. Compiled is used
+     * instead while the weights are the ones it was compiled for.
+     *
+     * @param ins       The input values, num_cases * NumInputs.
+     * @param outs      Receives the output values, num_cases * NumOutputs.
+     * @param num_cases The number of cases in the batch.
+     */
+    public void ForwardPass(double ins[], double outs[], int num_cases) {
+        if (Compiled != null && Compiled.ForwardPass(ins, outs, num_cases)) return;
+        double hidden[] = new double[num_cases * NumHidden];
+        MatMul(ins, W1, hidden, num_cases, NumInputs, NumHidden, ForwardKernel[0], ForwardBlock[0]);
+        for (int j = 0; j < hidden.length; j++)
+            hidden[j] = Sigmoid(hidden[j]);
+        java.util.Arrays.fill(outs, 0, num_cases * NumOutputs, 0.0);
+        MatMul(hidden, W2, outs, num_cases, NumHidden, NumOutputs, ForwardKernel[1], ForwardBlock[1]);
+        for (int k = 0; k < num_cases; k++)
+            ActivateOutputs(outs, k * NumOutputs);
+    }
+
+    /**
+     * Adds the product of a batch of row vectors and a weight matrix:
+     * out[k * cols + c] += in[k * rows + r] * W[r][c]. Every variant adds
+     * the terms for each output in the same order (increasing r), so they
+     * give bitwise identical results and differ only in memory access
+     * pattern; KernelTuner picks the fastest for a network's shape.
+     *
+     * @param in      The batch of inputs, n * rows values.
+     * @param W       The weights, [rows][cols].
+     * @param out     Accumulates the results, n * cols values.
+     * @param n       The number of cases in the batch.
+     * @param rows    The number of rows of W.
+     * @param cols    The number of columns of W.
+     * @param variant One of the KernelTuner.FORWARD_ constants.
+     * @param block   The number of cases per block for FORWARD_BLOCKED.
+     */
+    public static void MatMul(double in[], double W[][], double out[], int n,
+                              int rows, int cols, int variant, int block) {
+        switch (variant) {
+            case KernelTuner.FORWARD_CASES:
+                // one case at a time, streaming over all of W:
+                for (int k = 0; k < n; k++) {
+                    int base = k * cols;
+                    for (int r = 0; r < rows; r++) {
+                        double x = in[k * rows + r];
+                        if (x == 0.0) continue;
+                        double row[] = W[r];
+                        for (int c = 0; c < cols; c++)
+                            out[base + c] += x * row[c];
+                    }
+                }
+                break;
+            case KernelTuner.FORWARD_BLOCKED:
+                // a block of cases reuses each weight row while it is in cache:
+                for (int first = 0; first < n; first += block) {
+                    int last = Math.min(n, first + block);
+                    for (int r = 0; r < rows; r++) {
+                        double row[] = W[r];
+                        for (int k = first; k < last; k++) {
+                            double x = in[k * rows + r];
+                            if (x == 0.0) continue;
+                            int base = k * cols;
+                            for (int c = 0; c < cols; c++)
+                                out[base + c] += x * row[c];
+                        }
+                    }
+                }
+                break;
+            case KernelTuner.FORWARD_UNROLLED:
+                // one case at a time with the column loop unrolled by four:
+                for (int k = 0; k < n; k++) {
+                    int base = k * cols;
+                    for (int r = 0; r < rows; r++) {
+                        double x = in[k * rows + r];
+                        if (x == 0.0) continue;
+                        double row[] = W[r];
+                        int c = 0;
+                        for (; c + 3 < cols; c += 4) {
+                            out[base + c] += x * row[c];
+                            out[base + c + 1] += x * row[c + 1];
+                            out[base + c + 2] += x * row[c + 2];
+                            out[base + c + 3] += x * row[c + 3];
+                        }
+                        for (; c < cols; c++)
+                            out[base + c] += x * row[c];
+                    }
+                }
+                break;
+            default:
+                // each weight row is loaded once per batch:
+                for (int r = 0; r < rows; r++) {
+                    double row[] = W[r];
+                    for (int k = 0; k < n; k++) {
+                        double x = in[k * rows + r];
+                        if (x == 0.0) continue;
+                        int base = k * cols;
+                        for (int c = 0; c < cols; c++)
+                            out[base + c] += x * row[c];
+                    }
+                }
+        }
+    }
+
+    /**
+     * Applies the gradient step W[r][c] += rate * b[c] * a[r]. Both variants
+     * compute exactly the same values; they differ only in loop order.
+     *
+     * @param W       The weights, [rows][cols].
+     * @param a       The values feeding the layer (rows values).
+     * @param b       The error terms of the layer's neurons (cols values).
+     * @param rows    The number of rows of W.
+     * @param cols    The number of columns of W.
+     * @param rate    The step size.
+     * @param variant KernelTuner.UPDATE_COLUMNS or KernelTuner.UPDATE_ROWS.
+     */
+    public static void OuterUpdate(double W[][], double a[], double b[],
+                                   int rows, int cols, double rate, int variant) {
+        if (variant == KernelTuner.UPDATE_ROWS) {
+            for (int r = 0; r < rows; r++) {
+                double row[] = W[r];
+                for (int c = 0; c < cols; c++)
+                    row[c] += rate * b[c] * a[r];
+            }
+        } else {
+            for (int c = 0; c < cols; c++) {
+                double rb = rate * b[c];
+                for (int r = 0; r < rows; r++)
+                    W[r][c] += rb * a[r];
             }
         }
-        for (o = 0; o < NumOutputs; o++)
-            Outputs[o] = Sigmoid(Outputs[o]);
     }
 
     /**
@@ -193,11 +530,40 @@ class Neural extends Object {
      * @return The error after training.
      */
     public double Train() {
-        return Train(InputTraining, OutputTraining, NumTraining);
+        if (InputTraining == null && NumTraining > 0 && NeuralFile != null)
+            return TrainFromFile(256);
+        return Train(InputTraining, OutputTraining, TrainingWeights, NumTraining);
+    }
+
+    /**
+     * Trains one epoch on the training cases of NeuralFile, reading them a
+     * batch at a time; this is how Train() runs when the cases were left in
+     * off-heap storage (see NNfile.TrainingOnHeap). The updates are the same
+     * as Train's on the whole set.
+     *
+     * @param batch_size The number of cases read at a time.
+     * @return The error after training.
+     */
+    protected double TrainFromFile(int batch_size) {
+        double ins[] = new double[batch_size * NumInputs];
+        double outs[] = new double[batch_size * NumOutputs];
+        double error = 0.0;
+        BeginEpoch();
+        for (int first = 0; first < NumTraining; first += batch_size) {
+            int n = NeuralFile.GetBatch(first, batch_size, ins, outs);
+            InvalidateHiddenSums();
+            error += TrainCases(ins, outs, TrainingWeights, n, first);
+        }
+        EndEpoch();
+        return error;
     }
 
     /**
      * Trains the neural network using backpropagation on custom training data.
+     * With SoftmaxOutput the output deltas are target - output, the gradient
+     * of the cross-entropy loss with respect to the summed inputs of the
+     * output neurons, and the returned error is the summed cross-entropy.
+     * With FrozenW1 only the output layer is run (see TrainOutputLayer).
      *
      * @param ins       The input training data.
      * @param outs      The output training data.
@@ -207,64 +573,293 @@ class Neural extends Object {
     public double Train(double ins[],
                         double outs[],
                         int num_cases) {
-        int i, h, o;
+        return Train(ins, outs, null, num_cases);
+    }
+
+    /**
+     * Trains on training data whose cases carry integer weights, e.g. the
+     * merged duplicates of NNfile.Compact. A case of weight w contributes w
+     * times its error, and its deltas are scaled by w before the update, so
+     * it takes one step of w times the size instead of w separate steps
+     * (very large weights may call for a smaller LearningRate).
+     *
+     * @param ins       The input training data.
+     * @param outs      The output training data.
+     * @param weights   The weight of each case, or null for all 1.
+     * @param num_cases The number of training cases.
+     * @return The error after training.
+     */
+    public double Train(double ins[], double outs[], int weights[], int num_cases) {
+        BeginEpoch();
+        double error = TrainCases(ins, outs, weights, num_cases, 0);
+        EndEpoch();
+        return error;
+    }
+
+    /**
+     * Trains on a run of cases within an epoch started by BeginEpoch.
+     *
+     * @param first The number of the run's first case in the epoch, which
+     *              indexes weights and IgnoreTraining.
+     */
+    protected double TrainCases(double ins[], double outs[], int weights[],
+                                int num_cases, int first) {
+        if (FrozenW1) return TrainOutputLayer(ins, outs, weights, num_cases, first);
         int in_count = 0, out_count = 0;
         double error = 0.0;
+        double targets[] = SoftmaxOutput ? new double[NumOutputs] : null;
         for (int example = 0; example < num_cases; example++) {
             if (IgnoreTraining != null)
-                if (IgnoreTraining[example]) continue; // skip this case
-            // zero out error arrays:
-            for (h = 0; h < NumHidden; h++)
-                hidden_errors[h] = 0.0;
-            for (o = 0; o < NumOutputs; o++)
-                output_errors[o] = 0.0;
-            // copy the input values:
-            for (i = 0; i < NumInputs; i++) {
-                Inputs[i] = ins[in_count++];
-            }
+                if (IgnoreTraining[first + example]) { // skip this case
+                    in_count += NumInputs;
+                    out_count += NumOutputs;
+                    continue;
+                }
+            double case_error = Backpropagate(ins, in_count, outs, out_count, targets);
+            in_count += NumInputs;
+            out_count += NumOutputs;
+            error += weights == null ? case_error : ScaleDeltas(weights[first + example]) * case_error;
+            ApplyUpdate();
+        }
+        return error;
+    }
 
-            if (IgnoreInput != null) {
-                for (int ii = 0; ii < NumInputs; ii++) {
-                    if (IgnoreInput[ii]) {
-                        for (int hh = 0; hh < NumHidden; hh++) {
-                            W1[ii][hh] = 0;
-                        }
+    /**
+     * Multiplies output_errors and hidden_errors by a case weight.
+     *
+     * @return The weight.
+     */
+    protected double ScaleDeltas(int weight) {
+        if (weight != 1) {
+            for (int o = 0; o < NumOutputs; o++)
+                output_errors[o] *= weight;
+            for (int h = 0; h < NumHidden; h++)
+                hidden_errors[h] *= weight;
+        }
+        return weight;
+    }
+
+    /**
+     * Trains only W2 for one epoch, as Train does with FrozenW1. The hidden
+     * sums of all cases come from HiddenSums, which computes them once for
+     * as long as the cases and W1 stay the same, so each example costs
+     * NumHidden * NumOutputs rather than NumInputs * NumHidden operations.
+     * The results are the same as Train's with the W1 update left out.
+     * Callers that refill the same ins array with other cases call
+     * InvalidateHiddenSums first.
+     */
+    protected double TrainOutputLayer(double ins[], double outs[], int weights[],
+                                      int num_cases, int first) {
+        double error = 0.0;
+        double targets[] = SoftmaxOutput ? new double[NumOutputs] : null;
+        double sums[] = HiddenSums(ins, num_cases);
+        java.util.Arrays.fill(hidden_errors, 0.0);
+        for (int example = 0; example < num_cases; example++) {
+            if (IgnoreTraining != null && IgnoreTraining[first + example]) continue;
+            System.arraycopy(sums, example * NumHidden, Hidden, 0, NumHidden);
+            OutputLayer();
+            double case_error = OutputErrors(outs, example * NumOutputs, targets);
+            error += weights == null ? case_error
+                    : ScaleDeltas(weights[first + example]) * case_error;
+            ApplyUpdate();
+        }
+        return error;
+    }
+
+    /**
+     * Returns the hidden sums (before the sigmoid) of a set of cases,
+     * NumHidden values per case, computed in parallel chunks. The result is
+     * kept and returned again for the same ins array and number of cases
+     * while W1 is unchanged, which holds from epoch to epoch while W1 is
+     * frozen. The inputs are recognized by identity, not by content; see
+     * InvalidateHiddenSums.
+     *
+     * @param ins       The input training data.
+     * @param num_cases The number of training cases.
+     * @return The sums; do not modify.
+     */
+    public double[] HiddenSums(double ins[], int num_cases) {
+        // Backpropagate zeroes the W1 rows of ignored inputs:
+        if (IgnoreInput != null) {
+            for (int i = 0; i < NumInputs; i++) {
+                if (!IgnoreInput[i]) continue;
+                for (int h = 0; h < NumHidden; h++) {
+                    if (W1[i][h] != 0.0) {
+                        W1[i][h] = 0.0;
+                        W1Version++;
+                        WeightsVersion++;
                     }
                 }
             }
+        }
+        if (HiddenCache != null && HiddenCacheIns == ins &&
+                HiddenCacheCases == num_cases && HiddenCacheVersion == W1Version)
+            return HiddenCache;
+        double sums[] = new double[num_cases * NumHidden];
+        int chunk = 256;
+        java.util.stream.IntStream.range(0, (num_cases + chunk - 1) / chunk).parallel().forEach(c -> {
+            int first = c * chunk, n = Math.min(chunk, num_cases - first);
+            double in[] = new double[n * NumInputs], out[] = new double[n * NumHidden];
+            System.arraycopy(ins, first * NumInputs, in, 0, in.length);
+            MatMul(in, W1, out, n, NumInputs, NumHidden, ForwardKernel[0], ForwardBlock[0]);
+            System.arraycopy(out, 0, sums, first * NumHidden, out.length);
+        });
+        HiddenCache = sums;
+        HiddenCacheIns = ins;
+        HiddenCacheCases = num_cases;
+        HiddenCacheVersion = W1Version;
+        return sums;
+    }
 
-            // perform a forward pass through the network:
-            ForwardPass();
+    /**
+     * Drops the hidden sums kept by HiddenSums. Call this after changing
+     * the contents of an input array that was trained with FrozenW1.
+     */
+    public void InvalidateHiddenSums() {
+        HiddenCache = null;
+        HiddenCacheIns = null;
+    }
 
-            if (MyGUI != null) MyGUI.repaint();
-            for (o = 0; o < NumOutputs; o++) {
-                output_errors[o] = (outs[out_count++] - Outputs[o]) * SigmoidP(Outputs[o]);
-            }
-            for (h = 0; h < NumHidden; h++) {
-                hidden_errors[h] = 0.0;
-                for (o = 0; o < NumOutputs; o++) {
-                    hidden_errors[h] += output_errors[o] * W2[h][o];
-                }
-            }
-            for (h = 0; h < NumHidden; h++) {
-                hidden_errors[h] = hidden_errors[h] * SigmoidP(Hidden[h]);
-            }
+    /**
+     * Updates the weights from the deltas left by Backpropagate, with
+     * WeightOptimizer if one is set and plain SGD otherwise. Frozen weight
+     * matrices are not changed.
+     */
+    protected void ApplyUpdate() {
+        int i, h;
+        if (WeightOptimizer != null) {
+            WeightOptimizer.Update(this);
+        } else {
             // update the hidden to output weights:
-            for (o = 0; o < NumOutputs; o++) {
+            if (!FrozenW2)
+                OuterUpdate(W2, Hidden, output_errors, NumHidden, NumOutputs,
+                        LearningRate, UpdateKernel[1]);
+            // update the input to hidden weights:
+            if (!FrozenW1)
+                OuterUpdate(W1, Inputs, hidden_errors, NumInputs, NumHidden,
+                        LearningRate, UpdateKernel[0]);
+        }
+        if (PrunedW1 != null && !FrozenW1) {
+            for (i = 0; i < NumInputs; i++) {
                 for (h = 0; h < NumHidden; h++) {
-                    W2[h][o] +=
-                            0.5 * output_errors[o] * Hidden[h];
+                    if (PrunedW1[i][h]) W1[i][h] = 0;
                 }
             }
-            // update the input to hidden weights:
-            for (h = 0; h < NumHidden; h++) {
-                for (i = 0; i < NumInputs; i++) {
-                    W1[i][h] +=
-                            0.5 * hidden_errors[h] * Inputs[i];
+        }
+    }
+
+    /**
+     * Computes the gradient of the error over a set of training cases
+     * without changing the weights: G1 and G2 accumulate, per weight, the
+     * steps that Train would take for each case with a learning rate of 1.
+     * Cases marked in IgnoreTraining are skipped.
+     *
+     * @param ins       The input training data.
+     * @param outs      The output training data.
+     * @param num_cases The number of training cases.
+     * @param G1        Accumulates the W1 steps, [NumInputs][NumHidden].
+     * @param G2        Accumulates the W2 steps, [NumHidden][NumOutputs].
+     * @return The error summed over the cases, as Train reports it.
+     */
+    public double Gradient(double ins[], double outs[], int num_cases,
+                           double G1[][], double G2[][]) {
+        return Gradient(ins, outs, null, num_cases, G1, G2);
+    }
+
+    /**
+     * Computes the gradient over training cases with integer weights: as
+     * in Train(ins, outs, weights, num_cases), each case's step and error
+     * are scaled by its weight.
+     *
+     * @param weights The weight of each case, or null for all 1.
+     */
+    public double Gradient(double ins[], double outs[], int weights[], int num_cases,
+                           double G1[][], double G2[][]) {
+        double error = 0.0;
+        double targets[] = SoftmaxOutput ? new double[NumOutputs] : null;
+        for (int example = 0; example < num_cases; example++) {
+            if (IgnoreTraining != null && IgnoreTraining[example]) continue;
+            double case_error = Backpropagate(ins, example * NumInputs, outs, example * NumOutputs, targets);
+            error += weights == null ? case_error : ScaleDeltas(weights[example]) * case_error;
+            OuterUpdate(G2, Hidden, output_errors, NumHidden, NumOutputs, 1.0, UpdateKernel[1]);
+            OuterUpdate(G1, Inputs, hidden_errors, NumInputs, NumHidden, 1.0, UpdateKernel[0]);
+        }
+        return error;
+    }
+
+    /**
+     * Runs one training case forward and propagates its error back, leaving
+     * the deltas in output_errors and hidden_errors.
+     *
+     * @param ins      The input training data.
+     * @param in_base  The index of the case's first input in ins.
+     * @param outs     The output training data.
+     * @param out_base The index of the case's first output in outs.
+     * @param targets  Scratch space for softmax targets (NumOutputs values), or
+     *                 null without SoftmaxOutput.
+     * @return The error of this case.
+     */
+    protected double Backpropagate(double ins[], int in_base,
+                                   double outs[], int out_base, double targets[]) {
+        int i, h, o;
+        double error = 0.0;
+        // zero out error arrays:
+        for (h = 0; h < NumHidden; h++)
+            hidden_errors[h] = 0.0;
+        for (o = 0; o < NumOutputs; o++)
+            output_errors[o] = 0.0;
+        // copy the input values:
+        for (i = 0; i < NumInputs; i++) {
+            Inputs[i] = ins[in_base + i];
+        }
+
+        if (IgnoreInput != null) {
+            for (int ii = 0; ii < NumInputs; ii++) {
+                if (IgnoreInput[ii]) {
+                    for (int hh = 0; hh < NumHidden; hh++) {
+                        W1[ii][hh] = 0;
+                    }
                 }
             }
-            for (o = 0; o < NumOutputs; o++)
+        }
+
+        // perform a forward pass through the network:
+        ForwardPass();
+
+        if (MyGUI != null) MyGUI.repaint();
+        error = OutputErrors(outs, out_base, targets);
+        for (h = 0; h < NumHidden; h++) {
+            hidden_errors[h] = 0.0;
+            for (o = 0; o < NumOutputs; o++) {
+                hidden_errors[h] += output_errors[o] * W2[h][o];
+            }
+        }
+        for (h = 0; h < NumHidden; h++) {
+            hidden_errors[h] = hidden_errors[h] * SigmoidP(Hidden[h]);
+        }
+        return error;
+    }
+
+    /**
+     * Sets output_errors from the targets of one case and the Outputs of
+     * the last forward pass.
+     *
+     * @return The error of this case.
+     */
+    protected double OutputErrors(double outs[], int out_base, double targets[]) {
+        int o;
+        double error = 0.0;
+        if (SoftmaxOutput) {
+            SoftmaxTargets(outs, out_base, targets);
+            for (o = 0; o < NumOutputs; o++) {
+                output_errors[o] = targets[o] - Outputs[o];
+                if (targets[o] > 0.0) error -= targets[o] * LogOutputs[o];
+            }
+        } else {
+            for (o = 0; o < NumOutputs; o++) {
+                output_errors[o] = (outs[out_base + o] - Outputs[o]) * SigmoidP(Outputs[o]);
                 error += Math.abs(output_errors[o]);
+            }
         }
         return error;
     }
@@ -276,6 +871,15 @@ class Neural extends Object {
      * @return The result after applying the sigmoid function.
      */
     protected double Sigmoid(double x) {
+        return ShiftedSigmoid(x);
+    }
+
+    /**
+     * The sigmoid used by Sigmoid, shifted down by 0.5 so that it lies in
+     * (-0.5, 0.5); for the forward passes outside Neural (see QuantizedNeural,
+     * SparseNeural, BinaryForward and Evaluator).
+     */
+    static double ShiftedSigmoid(double x) {
         return (1.0 / (1.0 + Math.exp(-x))) - 0.5;
     }
 
@@ -0,0 +1,155 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The OnlineLearner class keeps training a network as new examples
+ * arrive, instead of retraining on the full training set.
+ * Producers hand examples to Add, which puts them on a lock-free queue and
+ * wakes the learner thread. For every new example the learner runs
+ * UpdatesPerSample training passes over a small batch made of the new
+ * example plus ReplayCount examples drawn from a replay buffer of earlier
+ * examples, so the cost per example is constant and older characters are
+ * not forgotten. The replay buffer keeps a uniform sample of everything
+ * seen (reservoir sampling) once it is full.
+ *
+ * Training holds the network's monitor; code that runs the network on
+ * another thread should synchronize on it too.
+ */
+public class OnlineLearner extends Object implements Runnable {
+
+    public int UpdatesPerSample = 5;
+    public int ReplayCount = 7;
+
+    protected Neural Net;
+    protected int NumInputs, NumOutputs, Stride;
+
+    protected ConcurrentLinkedQueue<double[]> Pending = new ConcurrentLinkedQueue<double[]>();
+
+    // Replay buffer: ReplayCapacity examples, inputs followed by outputs:
+    protected double Replay[];
+    protected int ReplayCapacity;
+    protected int ReplaySize = 0;
+    protected long NumSeen = 0;
+
+    protected double BatchIns[];
+    protected double BatchOuts[];
+    protected java.util.SplittableRandom Random;
+
+    protected Thread Learner = null;
+    protected volatile boolean Running = false;
+    public volatile double LastError = 0.0;
+
+    /**
+     * Creates a learner for a network.
+     *
+     * @param net             The network to train.
+     * @param replay_capacity The number of past examples kept for replay.
+     * @param seed            Seed for replay sampling.
+     */
+    public OnlineLearner(Neural net, int replay_capacity, long seed) {
+        Net = net;
+        NumInputs = net.NumInputs;
+        NumOutputs = net.NumOutputs;
+        Stride = NumInputs + NumOutputs;
+        ReplayCapacity = Math.max(1, replay_capacity);
+        Replay = new double[ReplayCapacity * Stride];
+        Random = new java.util.SplittableRandom(seed);
+    }
+
+    /**
+     * Starts the learner thread.
+     */
+    public void Start() {
+        if (Learner != null) return;
+        Running = true;
+        Learner = new Thread(this, "OnlineLearner");
+        Learner.setDaemon(true);
+        Learner.start();
+    }
+
+    /**
+     * Stops the learner thread; examples still queued are dropped.
+     */
+    public void Stop() {
+        Running = false;
+        if (Learner == null) return;
+        LockSupport.unpark(Learner);
+        try {
+            Learner.join();
+        } catch (InterruptedException e) {
+        }
+        Learner = null;
+    }
+
+    /**
+     * Queues a new example. Safe to call from any thread; never blocks.
+     *
+     * @param inputs  The input values (copied).
+     * @param outputs The target output values (copied).
+     */
+    public void Add(double inputs[], double outputs[]) {
+        double example[] = new double[Stride];
+        System.arraycopy(inputs, 0, example, 0, NumInputs);
+        System.arraycopy(outputs, 0, example, NumInputs, NumOutputs);
+        Pending.offer(example);
+        Thread t = Learner;
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    /**
+     * Returns the number of examples learned so far.
+     */
+    public long NumSeen() {
+        return NumSeen;
+    }
+
+    public void run() {
+        while (Running) {
+            double example[] = Pending.poll();
+            if (example == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            Learn(example);
+        }
+    }
+
+    /**
+     * Trains on one new example mixed with replayed ones and adds it to
+     * the replay buffer. Called on the learner thread.
+     */
+    protected void Learn(double example[]) {
+        int replay = Math.min(ReplayCount, ReplaySize);
+        int n = 1 + replay;
+        if (BatchIns == null || BatchIns.length < n * NumInputs) {
+            BatchIns = new double[n * NumInputs];
+            BatchOuts = new double[n * NumOutputs];
+        }
+        System.arraycopy(example, 0, BatchIns, 0, NumInputs);
+        System.arraycopy(example, NumInputs, BatchOuts, 0, NumOutputs);
+        for (int k = 1; k < n; k++) {
+            int base = Random.nextInt(ReplaySize) * Stride;
+            System.arraycopy(Replay, base, BatchIns, k * NumInputs, NumInputs);
+            System.arraycopy(Replay, base + NumInputs, BatchOuts, k * NumOutputs, NumOutputs);
+        }
+        double error = 0.0;
+        synchronized (Net) {
+            Net.InvalidateHiddenSums();
+            for (int u = 0; u < UpdatesPerSample; u++)
+                error = Net.Train(BatchIns, BatchOuts, n);
+        }
+        LastError = error;
+
+        // reservoir sampling keeps a uniform sample of all examples seen:
+        NumSeen++;
+        int slot = -1;
+        if (ReplaySize < ReplayCapacity) {
+            slot = ReplaySize++;
+        } else {
+            long r = Random.nextLong(NumSeen);
+            if (r < ReplayCapacity) slot = (int) r;
+        }
+        if (slot >= 0)
+            System.arraycopy(example, 0, Replay, slot * Stride, Stride);
+    }
+}
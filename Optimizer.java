@@ -0,0 +1,125 @@
+/**
+ * The Optimizer class is the base for weight update rules that can replace
+ * the plain SGD update in Neural.Train (see Neural.WeightOptimizer).
+ * Subclasses keep per-weight state in buffers shaped like W1 and W2 that
+ * are allocated once, on the first epoch, and reused afterwards.
+ *
+ * The gradient handed to UpdateLayer points in the direction that
+ * reduces the error, matching the sign convention of Neural.Train:
+ * grad[r][c] = a[r] * delta[c].
+ */
+abstract class Optimizer extends Object {
+
+    // Base learning rate, passed to the schedule each epoch:
+    public double Rate;
+    // Optional learning rate schedule (null -> constant Rate):
+    public RateSchedule Schedule = null;
+
+    // Number of completed calls to BeginEpoch and Update:
+    protected int Epoch = 0;
+    protected long Steps = 0;
+    // Learning rate in effect for the current epoch:
+    protected double CurrentRate;
+
+    private int NumInputs = -1, NumHidden = -1, NumOutputs = -1;
+    // Per-weight state of parameter matrices other than W1 and W2, by key
+    // (see UpdateParams):
+    protected java.util.HashMap<Integer, double[][][]> ParamState =
+            new java.util.HashMap<Integer, double[][][]>();
+
+    Optimizer(double rate) {
+        Rate = rate;
+        CurrentRate = rate;
+    }
+
+    /**
+     * Called by Neural.Train before the first example of every epoch.
+     *
+     * @param net The network being trained.
+     */
+    public void BeginEpoch(Neural net) {
+        if (net.NumInputs != NumInputs || net.NumHidden != NumHidden ||
+                net.NumOutputs != NumOutputs) {
+            NumInputs = net.NumInputs;
+            NumHidden = net.NumHidden;
+            NumOutputs = net.NumOutputs;
+            Allocate(NumInputs, NumHidden, NumOutputs);
+        }
+        CurrentRate = Schedule == null ? Rate : Schedule.Rate(Rate, Epoch);
+        Epoch++;
+    }
+
+    /**
+     * Called by Neural.Train once per training example, after the errors
+     * have been back propagated, to update the weight matrices that are
+     * not frozen (see Neural.FrozenW1 and FrozenW2).
+     *
+     * @param net The network being trained.
+     */
+    public void Update(Neural net) {
+        Steps++;
+        if (!net.FrozenW2)
+            UpdateLayer(1, net.W2, net.Hidden, net.output_errors, NumHidden, NumOutputs);
+        if (!net.FrozenW1)
+            UpdateLayer(0, net.W1, net.Inputs, net.hidden_errors, NumInputs, NumHidden);
+    }
+
+    /**
+     * Updates a parameter matrix other than W1 and W2, e.g. the kernels of
+     * a ConvLayer, after Update has run for the same example. Its state is
+     * kept under key and allocated on first use.
+     *
+     * @param key Identifies the matrix (2 and up; 0 and 1 are W1 and W2).
+     * @param W   The parameters.
+     * @param G   The gradient for this example, shaped like W, with the
+     *            sign convention of UpdateLayer.
+     */
+    public void UpdateParams(int key, double W[][], double G[][]) {
+        double state[][][] = ParamState.get(key);
+        if (state == null || state[0].length != W.length || state[0][0].length != W[0].length) {
+            state = new double[StateCount()][W.length][W[0].length];
+            ParamState.put(key, state);
+        }
+        UpdateParams(W, G, state);
+    }
+
+    /**
+     * Resets the epoch and step counters and all per-weight state.
+     */
+    public void Reset() {
+        Epoch = 0;
+        Steps = 0;
+        NumInputs = NumHidden = NumOutputs = -1;
+        ParamState.clear();
+    }
+
+    /**
+     * Allocates the state buffers for a network of the given shape.
+     */
+    protected abstract void Allocate(int num_inputs, int num_hidden, int num_outputs);
+
+    /**
+     * Updates one weight matrix.
+     *
+     * @param layer 0 for W1, 1 for W2.
+     * @param W     The weight matrix, W[r][c].
+     * @param a     The activations feeding the matrix (length rows).
+     * @param delta The back propagated errors of the layer above (length cols).
+     */
+    protected abstract void UpdateLayer(int layer, double[][] W,
+                                        double a[], double delta[],
+                                        int rows, int cols);
+
+    /**
+     * Returns the number of per-weight state buffers UpdateParams needs.
+     */
+    protected abstract int StateCount();
+
+    /**
+     * Updates a parameter matrix from its gradient, as UpdateLayer does
+     * from an outer product.
+     *
+     * @param state The matrix's state buffers (StateCount of them, shaped like W).
+     */
+    protected abstract void UpdateParams(double W[][], double G[][], double state[][][]);
+}
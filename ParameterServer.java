@@ -0,0 +1,519 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+
+/**
+ * The ParameterServer class trains one network with several worker
+ * processes on the same machine. The server holds the weights, split
+ * into shards that are locked and updated independently. Each worker
+ * reads only its shard of the model file's training cases (every count'th
+ * case, see NNfile(String, int, int)), so no process holds the whole
+ * corpus; the server reads just the weights. Workers repeatedly pull the
+ * weights, compute the gradient of a mini-batch with Neural.Gradient and
+ * push it back over loopback TCP.
+ *
+ * Modes:
+ *   sync       the server waits for one gradient from every active worker,
+ *              applies their average and only then answers the pushes, so
+ *              all workers always compute on the same weights.
+ *   staleness  pushes are applied as they arrive. A push computed on
+ *              weights more than MaxStaleness versions old is rejected and
+ *              the worker pulls fresh weights; workers apply their own
+ *              gradient locally and pull only when they fall behind.
+ *
+ *   java ParameterServer server <model> <port> <workers> [options]
+ *   java ParameterServer worker <model> <port> <index> <workers> [options]
+ *   java ParameterServer local  <model> <workers> [options]
+ *
+ * "local" runs the server in this JVM and starts the workers as child
+ * processes. Options: -sync, -staleness <versions>, -rate <r>,
+ * -shards <n>, -epochs <n>, -batch <cases>, -timeout <seconds to wait
+ * for each worker to connect>, -out <file> (the trained weights, without
+ * training cases).
+ *
+ * Protocol (DataOutputStream, big endian):
+ *   worker: int MAGIC, int inputs, int hidden, int outputs
+ *   server: int mode, int max_staleness, double rate
+ *   then requests, each a command byte:
+ *   PULL                                    -> long version, weights
+ *   PUSH long base_version, int cases, grad -> byte ACCEPTED|STALE, long version
+ *   DONE double error                       (connection closes)
+ * Weights and gradients are W1 then W2, row by row, as doubles.
+ */
+public class ParameterServer extends Object {
+
+    public static final int MAGIC = 0x4e4e5053; // "NNPS"
+    public static final int SYNC = 0;
+    public static final int STALENESS = 1;
+
+    public static final byte PULL = 1;
+    public static final byte PUSH = 2;
+    public static final byte DONE = 3;
+    public static final byte ACCEPTED = 0;
+    public static final byte STALE = 1;
+
+    public int Mode = SYNC;
+    public int MaxStaleness = 4;
+    // Step size applied to the mean per case gradient:
+    public double Rate = 2.0;
+
+    protected Neural Net;
+    protected int NumInputs;
+    protected int NumHidden;
+    protected int NumOutputs;
+    protected int NumParams;
+
+    // The weights, flat, split into shards [ShardStart[s], ShardStart[s + 1]):
+    protected double Params[];
+    protected int ShardStart[];
+    protected ReentrantLock ShardLock[];
+    protected volatile long Version = 0;
+
+    // Synchronous mode: gradients summed for the current step.
+    protected double Sum[];
+    protected int SumCases = 0;
+    protected int Pending = 0;
+    protected int Active;
+    protected long Step = 0;
+
+    public long Accepted = 0;
+    public long Rejected = 0;
+    // Milliseconds Serve waits for each worker to connect (0: forever):
+    public int AcceptTimeout = 60000;
+    // The last epoch errors reported by the workers, summed:
+    public double WorkerError = 0.0;
+
+    protected ServerSocket Listener;
+
+    /**
+     * Creates a parameter server for a network.
+     *
+     * @param net         The network; its weights are the starting point and
+     *                    receive the result (see CopyTo).
+     * @param num_workers The number of workers that will connect.
+     * @param num_shards  The number of independently locked weight shards.
+     */
+    public ParameterServer(Neural net, int num_workers, int num_shards) {
+        Net = net;
+        NumInputs = net.NumInputs;
+        NumHidden = net.NumHidden;
+        NumOutputs = net.NumOutputs;
+        NumParams = NumInputs * NumHidden + NumHidden * NumOutputs;
+        Params = new double[NumParams];
+        Flatten(net.W1, net.W2, Params);
+        num_shards = Math.max(1, Math.min(num_shards, NumParams));
+        ShardStart = new int[num_shards + 1];
+        ShardLock = new ReentrantLock[num_shards];
+        for (int s = 0; s <= num_shards; s++)
+            ShardStart[s] = (int) ((long) NumParams * s / num_shards);
+        for (int s = 0; s < num_shards; s++)
+            ShardLock[s] = new ReentrantLock();
+        Sum = new double[NumParams];
+        Active = num_workers;
+    }
+
+    /**
+     * Accepts the workers on a loopback port and serves them until all of
+     * them are done. Each worker gets its own thread.
+     *
+     * @param port The TCP port, or 0 for any free port (see Port).
+     */
+    public void Open(int port) throws IOException {
+        Listener = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    public int Port() {
+        return Listener.getLocalPort();
+    }
+
+    public void Serve() throws IOException, InterruptedException {
+        int num_workers = Active;
+        List<Thread> threads = new ArrayList<Thread>();
+        Listener.setSoTimeout(AcceptTimeout);
+        for (int w = 0; w < num_workers; w++) {
+            Socket socket;
+            try {
+                socket = Listener.accept();
+            } catch (java.net.SocketTimeoutException e) {
+                System.out.println("Error: only " + w + " of " + num_workers +
+                        " workers connected; training with those");
+                WorkersMissing(num_workers - w);
+                break;
+            }
+            socket.setTcpNoDelay(true);
+            Thread t = new Thread(() -> HandleWorker(socket), "ps-worker-" + w);
+            t.start();
+            threads.add(t);
+        }
+        Listener.close();
+        for (Thread t : threads)
+            t.join();
+    }
+
+    /**
+     * Copies the current weights into the network given to the constructor.
+     */
+    public void CopyTo() {
+        double copy[] = Snapshot();
+        Unflatten(copy, Net.W1, Net.W2);
+        Net.WeightsChanged();
+    }
+
+    private void HandleWorker(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+            if (in.readInt() != MAGIC || in.readInt() != NumInputs ||
+                    in.readInt() != NumHidden || in.readInt() != NumOutputs) {
+                System.out.println("Error: worker model does not match the server");
+                WorkerDone();
+                return;
+            }
+            out.writeInt(Mode);
+            out.writeInt(MaxStaleness);
+            out.writeDouble(Rate);
+            out.flush();
+            double grad[] = new double[NumParams];
+            while (true) {
+                byte command = in.readByte();
+                if (command == PULL) {
+                    double copy[] = Snapshot();
+                    out.writeLong(Version);
+                    for (double x : copy) out.writeDouble(x);
+                    out.flush();
+                } else if (command == PUSH) {
+                    long base = in.readLong();
+                    int cases = in.readInt();
+                    for (int j = 0; j < NumParams; j++)
+                        grad[j] = in.readDouble();
+                    boolean ok = Mode == SYNC ? PushSync(grad, cases) : PushAsync(grad, cases, base);
+                    out.writeByte(ok ? ACCEPTED : STALE);
+                    out.writeLong(Version);
+                    out.flush();
+                } else {
+                    double error = in.readDouble();
+                    synchronized (this) {
+                        WorkerError += error;
+                    }
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Worker connection lost: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        WorkerDone();
+    }
+
+    // Synchronous step: the last worker to arrive applies the average.
+    private synchronized boolean PushSync(double grad[], int cases) throws InterruptedException {
+        for (int j = 0; j < NumParams; j++)
+            Sum[j] += grad[j];
+        SumCases += cases;
+        Pending++;
+        long step = Step;
+        if (Pending >= Active) {
+            ApplySum();
+        } else {
+            while (Step == step) wait();
+        }
+        Accepted++;
+        return true;
+    }
+
+    private synchronized void WorkerDone() {
+        WorkersMissing(1);
+    }
+
+    // Stops waiting for workers that are done or never connected:
+    private synchronized void WorkersMissing(int n) {
+        Active -= n;
+        if (Pending > 0 && Pending >= Active) ApplySum();
+    }
+
+    private void ApplySum() {
+        Apply(Sum, SumCases);
+        java.util.Arrays.fill(Sum, 0.0);
+        SumCases = 0;
+        Pending = 0;
+        Step++;
+        Version++;
+        notifyAll();
+    }
+
+    private boolean PushAsync(double grad[], int cases, long base) {
+        if (Version - base > MaxStaleness) {
+            synchronized (this) {
+                Rejected++;
+            }
+            return false;
+        }
+        Apply(grad, cases);
+        synchronized (this) {
+            Version++;
+            Accepted++;
+        }
+        return true;
+    }
+
+    // Adds Rate * grad / cases to the weights, shards in parallel:
+    private void Apply(double grad[], int cases) {
+        double scale = Rate / Math.max(1, cases);
+        IntStream.range(0, ShardLock.length).parallel().forEach(s -> {
+            ShardLock[s].lock();
+            try {
+                for (int j = ShardStart[s]; j < ShardStart[s + 1]; j++)
+                    Params[j] += scale * grad[j];
+            } finally {
+                ShardLock[s].unlock();
+            }
+        });
+    }
+
+    private double[] Snapshot() {
+        double copy[] = new double[NumParams];
+        for (int s = 0; s < ShardLock.length; s++) {
+            ShardLock[s].lock();
+            try {
+                System.arraycopy(Params, ShardStart[s], copy, ShardStart[s], ShardStart[s + 1] - ShardStart[s]);
+            } finally {
+                ShardLock[s].unlock();
+            }
+        }
+        return copy;
+    }
+
+    static void Flatten(double W1[][], double W2[][], double flat[]) {
+        int j = 0;
+        for (double row[] : W1) {
+            System.arraycopy(row, 0, flat, j, row.length);
+            j += row.length;
+        }
+        for (double row[] : W2) {
+            System.arraycopy(row, 0, flat, j, row.length);
+            j += row.length;
+        }
+    }
+
+    static void Unflatten(double flat[], double W1[][], double W2[][]) {
+        int j = 0;
+        for (double row[] : W1) {
+            System.arraycopy(flat, j, row, 0, row.length);
+            j += row.length;
+        }
+        for (double row[] : W2) {
+            System.arraycopy(flat, j, row, 0, row.length);
+            j += row.length;
+        }
+    }
+
+    /**
+     * Runs a worker: trains on the network's training cases, which are one
+     * shard of a file of total cases split between count workers, for a
+     * number of epochs. Every worker takes the same number of steps per
+     * epoch (shards that are shorter wrap around), so synchronous steps line up.
+     *
+     * @param total The number of training cases in all shards.
+     * @return The error summed over the worker's cases in the last epoch.
+     */
+    public static double RunWorker(Neural net, int port, int total, int count,
+                                   int epochs, int batch) throws IOException {
+        int ni = net.NumInputs, no = net.NumOutputs;
+        int shard = net.NumTraining;
+        if (shard == 0) {
+            System.out.println("Error: worker has no training cases");
+            return 0.0;
+        }
+        int longest = (total + count - 1) / count;
+        int steps = (longest + batch - 1) / batch;
+        double ins[] = new double[batch * ni];
+        double outs[] = new double[batch * no];
+        // the weights of compacted cases (see NNfile.Compact), or null:
+        int weights[] = net.TrainingWeights != null ? new int[batch] : null;
+        double G1[][] = new double[net.NumInputs][net.NumHidden];
+        double G2[][] = new double[net.NumHidden][net.NumOutputs];
+        double flat[] = new double[net.NumInputs * net.NumHidden + net.NumHidden * net.NumOutputs];
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(net.NumInputs);
+            out.writeInt(net.NumHidden);
+            out.writeInt(net.NumOutputs);
+            out.flush();
+            int mode = in.readInt();
+            int max_staleness = in.readInt();
+            double rate = in.readDouble();
+
+            long version = Pull(in, out, net, flat);
+            double error = 0.0;
+            int next = 0; // position in the worker's shard
+            for (int epoch = 0; epoch < epochs; epoch++) {
+                error = 0.0;
+                for (int step = 0; step < steps; step++) {
+                    int n = 0, cases = 0;
+                    for (; n < batch && step * batch + n < longest; n++) {
+                        int k = next % shard;
+                        next++;
+                        System.arraycopy(net.InputTraining, k * ni, ins, n * ni, ni);
+                        System.arraycopy(net.OutputTraining, k * no, outs, n * no, no);
+                        if (weights != null) weights[n] = net.TrainingWeights[k];
+                        cases += weights != null ? weights[n] : 1;
+                    }
+                    for (double row[] : G1) java.util.Arrays.fill(row, 0.0);
+                    for (double row[] : G2) java.util.Arrays.fill(row, 0.0);
+                    error += net.Gradient(ins, outs, weights, n, G1, G2);
+                    Flatten(G1, G2, flat);
+                    out.writeByte(PUSH);
+                    out.writeLong(version);
+                    out.writeInt(cases); // a merged case counts as its weight
+                    for (double x : flat) out.writeDouble(x);
+                    out.flush();
+                    boolean accepted = in.readByte() == ACCEPTED;
+                    long server_version = in.readLong();
+                    if (mode == SYNC || !accepted || server_version - version >= max_staleness) {
+                        version = Pull(in, out, net, flat);
+                    } else {
+                        // apply our own step locally and keep going:
+                        double scale = rate / Math.max(1, cases);
+                        for (int i = 0; i < net.NumInputs; i++)
+                            for (int h = 0; h < net.NumHidden; h++)
+                                net.W1[i][h] += scale * G1[i][h];
+                        for (int h = 0; h < net.NumHidden; h++)
+                            for (int o = 0; o < net.NumOutputs; o++)
+                                net.W2[h][o] += scale * G2[h][o];
+                        net.WeightsChanged();
+                    }
+                }
+                next = 0;
+            }
+            out.writeByte(DONE);
+            out.writeDouble(error);
+            out.flush();
+            return error;
+        }
+    }
+
+    private static long Pull(DataInputStream in, DataOutputStream out,
+                             Neural net, double flat[]) throws IOException {
+        out.writeByte(PULL);
+        out.flush();
+        long version = in.readLong();
+        for (int j = 0; j < flat.length; j++)
+            flat[j] = in.readDouble();
+        Unflatten(flat, net.W1, net.W2);
+        net.WeightsChanged();
+        return version;
+    }
+
+    private static void Usage() {
+        System.out.println("usage: java ParameterServer server <model> <port> <workers> [options]");
+        System.out.println("       java ParameterServer worker <model> <port> <index> <workers> [options]");
+        System.out.println("       java ParameterServer local <model> <workers> [options]");
+        System.out.println("options: -sync | -staleness n, -rate r, -shards n, -epochs n, -batch n,");
+        System.out.println("         -timeout seconds, -out file");
+    }
+
+    public static void main(String argv[]) throws Exception {
+        if (argv.length < 3) {
+            Usage();
+            return;
+        }
+        String command = argv[0], model = argv[1];
+        int first_option = command.equals("server") ? 4 : command.equals("worker") ? 5 : 3;
+        if (argv.length < first_option) {
+            Usage();
+            return;
+        }
+        int mode = SYNC, staleness = 4, shards = 16, epochs = 100, batch = 8, timeout = 60;
+        double rate = 2.0;
+        String out_file = null;
+        List<String> options = new ArrayList<String>();
+        for (int a = first_option; a < argv.length; a++) {
+            options.add(argv[a]);
+            String opt = argv[a];
+            if (opt.equals("-sync")) {
+                mode = SYNC;
+                continue;
+            }
+            if (a + 1 >= argv.length) {
+                Usage();
+                return;
+            }
+            String value = argv[++a];
+            options.add(value);
+            if (opt.equals("-staleness")) {
+                mode = STALENESS;
+                staleness = Integer.parseInt(value);
+            } else if (opt.equals("-rate")) rate = Double.parseDouble(value);
+            else if (opt.equals("-shards")) shards = Integer.parseInt(value);
+            else if (opt.equals("-epochs")) epochs = Integer.parseInt(value);
+            else if (opt.equals("-batch")) batch = Integer.parseInt(value);
+            else if (opt.equals("-timeout")) timeout = Integer.parseInt(value);
+            else if (opt.equals("-out")) out_file = value;
+            else {
+                Usage();
+                return;
+            }
+        }
+
+        if (command.equals("worker")) {
+            int index = Integer.parseInt(argv[3]), count = Integer.parseInt(argv[4]);
+            NNfile shard = new NNfile(model, index, count);
+            Neural net = new Neural(shard);
+            if (net.InputTraining == null) net.LoadTrainingCases(); // from off-heap storage
+            double error = RunWorker(net, Integer.parseInt(argv[2]), shard.FileTraining, count,
+                    epochs, batch);
+            System.out.println("worker " + index + ": last epoch error " + error);
+            return;
+        }
+
+        Neural net = new Neural(new NNfile(model, 0, 0)); // the weights only
+        int workers = Integer.parseInt(command.equals("server") ? argv[3] : argv[2]);
+        ParameterServer server = new ParameterServer(net, workers, shards);
+        server.Mode = mode;
+        server.MaxStaleness = staleness;
+        server.Rate = rate;
+        server.AcceptTimeout = timeout * 1000;
+        server.Open(command.equals("server") ? Integer.parseInt(argv[2]) : 0);
+
+        List<Process> children = new ArrayList<Process>();
+        if (command.equals("local")) {
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            for (int w = 0; w < workers; w++) {
+                List<String> cmd = new ArrayList<String>();
+                cmd.add(java);
+                cmd.add("-cp");
+                cmd.add(System.getProperty("java.class.path"));
+                cmd.add("ParameterServer");
+                cmd.add("worker");
+                cmd.add(model);
+                cmd.add(Integer.toString(server.Port()));
+                cmd.add(Integer.toString(w));
+                cmd.add(Integer.toString(workers));
+                cmd.addAll(options);
+                children.add(new ProcessBuilder(cmd).redirectErrorStream(true)
+                        .redirectOutput(new File("worker" + w + ".log")).start());
+            }
+        }
+        long start = System.nanoTime();
+        server.Serve();
+        for (Process p : children)
+            p.waitFor();
+        server.CopyTo();
+
+        System.out.println("Trained in " + (System.nanoTime() - start) / 1000000 + " ms: " +
+                server.Version + " versions, " + server.Accepted + " accepted, " +
+                server.Rejected + " stale pushes; last epoch error of the workers " +
+                server.WorkerError);
+        if (out_file != null) net.Save(out_file);
+    }
+}
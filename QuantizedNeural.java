@@ -0,0 +1,194 @@
+/**
+ * The QuantizedNeural class is an inference-only copy of a trained Neural
+ * network that stores both weight matrices as int8 values.
+ * Every row of a weight matrix (all weights feeding one hidden or output
+ * neuron) has its own scale factor, and the forward pass accumulates
+ * int8 activation by int8 weight products in int arithmetic.
+ */
+class QuantizedNeural extends Object {
+
+    protected int NumInputs;
+    protected int NumHidden;
+    protected int NumOutputs;
+
+    public double Inputs[];
+    protected double Hidden[];
+    public double Outputs[];
+    // Same output layer as the source network:
+    protected boolean SoftmaxOutput;
+
+    // Q1[h][i] * Scale1[h] approximates W1[i][h]:
+    protected byte[][] Q1;
+    protected double Scale1[];
+    // Q2[o][h] * Scale2[o] approximates W2[h][o]:
+    protected byte[][] Q2;
+    protected double Scale2[];
+
+    // Quantized activations for the current forward pass:
+    private byte QInputs[];
+    private byte QHidden[];
+
+    // Hidden activations are sigmoid outputs in -0.5..0.5, so they use a fixed scale:
+    private static final double HIDDEN_SCALE = 0.5 / 127.0;
+
+    /**
+     * Creates a quantized copy of a trained network.
+     *
+     * @param net The trained network; its weights are read but not modified.
+     */
+    QuantizedNeural(Neural net) {
+        NumInputs = net.NumInputs;
+        NumHidden = net.NumHidden;
+        NumOutputs = net.NumOutputs;
+        SoftmaxOutput = net.SoftmaxOutput;
+
+        Inputs = new double[NumInputs];
+        Hidden = new double[NumHidden];
+        Outputs = new double[NumOutputs];
+        QInputs = new byte[NumInputs];
+        QHidden = new byte[NumHidden];
+
+        Q1 = new byte[NumHidden][NumInputs];
+        Scale1 = new double[NumHidden];
+        for (int h = 0; h < NumHidden; h++) {
+            double max = 0.0;
+            for (int i = 0; i < NumInputs; i++)
+                max = Math.max(max, Math.abs(net.W1[i][h]));
+            Scale1[h] = max > 0.0 ? max / 127.0 : 1.0;
+            for (int i = 0; i < NumInputs; i++)
+                Q1[h][i] = Quantize(net.W1[i][h], Scale1[h]);
+        }
+
+        Q2 = new byte[NumOutputs][NumHidden];
+        Scale2 = new double[NumOutputs];
+        for (int o = 0; o < NumOutputs; o++) {
+            double max = 0.0;
+            for (int h = 0; h < NumHidden; h++)
+                max = Math.max(max, Math.abs(net.W2[h][o]));
+            Scale2[o] = max > 0.0 ? max / 127.0 : 1.0;
+            for (int h = 0; h < NumHidden; h++)
+                Q2[o][h] = Quantize(net.W2[h][o], Scale2[o]);
+        }
+    }
+
+    /**
+     * Performs a forward pass using the values in Inputs, leaving the
+     * results in Outputs.
+     */
+    public void ForwardPass() {
+        int i, h, o;
+        // Quantize the input vector with a single scale for the whole vector:
+        double max = 0.0;
+        for (i = 0; i < NumInputs; i++)
+            max = Math.max(max, Math.abs(Inputs[i]));
+        double in_scale = max > 0.0 ? max / 127.0 : 1.0;
+        for (i = 0; i < NumInputs; i++)
+            QInputs[i] = Quantize(Inputs[i], in_scale);
+
+        for (h = 0; h < NumHidden; h++) {
+            byte row[] = Q1[h];
+            int acc = 0;
+            for (i = 0; i < NumInputs; i++)
+                acc += QInputs[i] * row[i];
+            Hidden[h] = acc * in_scale * Scale1[h];
+            QHidden[h] = Quantize(Neural.ShiftedSigmoid(Hidden[h]), HIDDEN_SCALE);
+        }
+        for (o = 0; o < NumOutputs; o++) {
+            byte row[] = Q2[o];
+            int acc = 0;
+            for (h = 0; h < NumHidden; h++)
+                acc += QHidden[h] * row[h];
+            Outputs[o] = acc * HIDDEN_SCALE * Scale2[o];
+            if (!SoftmaxOutput) Outputs[o] = Neural.ShiftedSigmoid(Outputs[o]);
+        }
+        if (SoftmaxOutput) Neural.Softmax(Outputs, 0, NumOutputs, null);
+    }
+
+    /**
+     * Returns the approximate number of bytes used by the weights and scales.
+     *
+     * @return The weight storage size in bytes.
+     */
+    public int WeightBytes() {
+        return NumHidden * NumInputs + NumOutputs * NumHidden +
+                8 * (NumHidden + NumOutputs);
+    }
+
+    /**
+     * Compares this quantized network with the network it was built from
+     * on a set of training cases. A case counts as correct when the
+     * largest output neuron matches the largest target value.
+     *
+     * @param net       The original double precision network.
+     * @param ins       The input training data.
+     * @param outs      The output training data.
+     * @param num_cases The number of training cases.
+     * @return A printable report of both accuracies and their agreement.
+     */
+    public String Compare(Neural net, double ins[], double outs[], int num_cases) {
+        return Compare(net, ins, outs, null, num_cases);
+    }
+
+    /**
+     * Compares on training cases with integer weights (see NNfile.Compact):
+     * a case of weight w counts as w cases, as in Evaluator.Evaluate.
+     *
+     * @param weights The weight of each case, or null for all 1.
+     */
+    public String Compare(Neural net, double ins[], double outs[], int weights[], int num_cases) {
+        long net_correct = 0, q_correct = 0, agree = 0, total = 0;
+        double max_diff = 0.0;
+        for (int k = 0; k < num_cases; k++) {
+            for (int i = 0; i < NumInputs; i++) {
+                net.Inputs[i] = ins[k * NumInputs + i];
+                Inputs[i] = ins[k * NumInputs + i];
+            }
+            net.ForwardPass();
+            ForwardPass();
+            for (int o = 0; o < NumOutputs; o++)
+                max_diff = Math.max(max_diff, Math.abs(net.Outputs[o] - Outputs[o]));
+            int target = ArgMax(outs, k * NumOutputs, NumOutputs);
+            int net_best = ArgMax(net.Outputs, 0, NumOutputs);
+            int q_best = ArgMax(Outputs, 0, NumOutputs);
+            int weight = weights == null ? 1 : weights[k];
+            if (net_best == target) net_correct += weight;
+            if (q_best == target) q_correct += weight;
+            if (net_best == q_best) agree += weight;
+            total += weight;
+        }
+        double denom = Math.max(total, 1);
+        int double_bytes = 8 * (NumInputs * NumHidden + NumHidden * NumOutputs);
+        return "Training cases: " + total + "\n" +
+                "Double accuracy:    " + (100.0 * net_correct / denom) + "%\n" +
+                "Quantized accuracy: " + (100.0 * q_correct / denom) + "%\n" +
+                "Argmax agreement:   " + (100.0 * agree / denom) + "%\n" +
+                "Max output difference: " + max_diff + "\n" +
+                "Weight bytes: " + double_bytes + " -> " + WeightBytes() + "\n";
+    }
+
+    private static byte Quantize(double x, double scale) {
+        long q = Math.round(x / scale);
+        if (q > 127) q = 127;
+        else if (q < -127) q = -127;
+        return (byte) q;
+    }
+
+    private static int ArgMax(double v[], int offset, int n) {
+        int index = 0;
+        for (int i = 1; i < n; i++)
+            if (v[offset + i] > v[offset + index]) index = i;
+        return index;
+    }
+
+    public static void main(String argv[]) {
+        if (argv.length < 1) {
+            System.out.println("usage: java QuantizedNeural <network file>");
+            return;
+        }
+        Neural net = new Neural(argv[0]);
+        if (net.InputTraining == null) net.LoadTrainingCases(); // from off-heap storage
+        QuantizedNeural q = new QuantizedNeural(net);
+        System.out.print(q.Compare(net, net.InputTraining, net.OutputTraining,
+                net.TrainingWeights, net.NumTraining));
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * The RateSchedule class is the base for learning rate schedules used by
+ * an Optimizer (see Optimizer.Schedule). A schedule maps the base rate
+ * and the zero based epoch number to the rate used for that epoch.
+ */
+abstract class RateSchedule extends Object {
+
+    /**
+     * Returns the learning rate for an epoch.
+     *
+     * @param base  The optimizer's base learning rate.
+     * @param epoch The zero based epoch number.
+     * @return The learning rate to use for this epoch.
+     */
+    public abstract double Rate(double base, int epoch);
+}
+
+/**
+ * Multiplies the rate by Gamma every StepSize epochs.
+ */
+class StepSchedule extends RateSchedule {
+    public int StepSize;
+    public double Gamma;
+
+    StepSchedule(int step_size, double gamma) {
+        StepSize = step_size;
+        Gamma = gamma;
+    }
+
+    public double Rate(double base, int epoch) {
+        return base * Math.pow(Gamma, epoch / Math.max(StepSize, 1));
+    }
+}
+
+/**
+ * Cosine annealing from the base rate down to MinRate over NumEpochs
+ * epochs; the rate stays at MinRate afterwards.
+ */
+class CosineSchedule extends RateSchedule {
+    public int NumEpochs;
+    public double MinRate;
+
+    CosineSchedule(int num_epochs, double min_rate) {
+        NumEpochs = num_epochs;
+        MinRate = min_rate;
+    }
+
+    public double Rate(double base, int epoch) {
+        if (epoch >= NumEpochs) return MinRate;
+        double t = (double) epoch / Math.max(NumEpochs, 1);
+        return MinRate + 0.5 * (base - MinRate) * (1.0 + Math.cos(Math.PI * t));
+    }
+}
+
+/**
+ * Ramps the rate linearly up to the base rate over WarmupEpochs epochs,
+ * then hands over to another schedule (or keeps the base rate).
+ */
+class WarmupSchedule extends RateSchedule {
+    public int WarmupEpochs;
+    public RateSchedule After;
+
+    WarmupSchedule(int warmup_epochs, RateSchedule after) {
+        WarmupEpochs = warmup_epochs;
+        After = after;
+    }
+
+    public double Rate(double base, int epoch) {
+        if (epoch < WarmupEpochs)
+            return base * (epoch + 1) / (double) WarmupEpochs;
+        if (After == null) return base;
+        return After.Rate(base, epoch - WarmupEpochs);
+    }
+}
@@ -0,0 +1,215 @@
+import java.util.Arrays;
+
+/**
+ * The SparseNeural class is an inference-only copy of a trained Neural
+ * network whose input to hidden weights are stored in compressed sparse
+ * row (CSR) form, one row per hidden neuron.
+ * The static Prune methods zero out small W1 weights in a Neural network
+ * (optionally fine-tuning the remaining weights) before it is compressed.
+ * When too many weights survive pruning, the dense layout is kept instead.
+ */
+class SparseNeural extends Object {
+
+    // Above this fraction of nonzero W1 weights the dense kernel is faster:
+    public static final double DEFAULT_MAX_DENSITY = 0.5;
+
+    protected int NumInputs;
+    protected int NumHidden;
+    protected int NumOutputs;
+
+    public double Inputs[];
+    protected double Hidden[];
+    public double Outputs[];
+    // Same output layer as the source network:
+    protected boolean SoftmaxOutput;
+
+    // CSR storage of W1 transposed: the nonzero weights of hidden neuron h
+    // are Values[RowStart[h] .. RowStart[h + 1] - 1] at inputs Columns[..]:
+    protected int RowStart[];
+    protected int Columns[];
+    protected double Values[];
+
+    // Dense fallback, W1T[h][i] == W1[i][h] (null when CSR is used):
+    protected double[][] W1T;
+
+    protected double[][] W2;
+
+    /**
+     * Creates a sparse copy of a network using the default density cutoff.
+     *
+     * @param net The (usually pruned) trained network.
+     */
+    SparseNeural(Neural net) {
+        this(net, DEFAULT_MAX_DENSITY);
+    }
+
+    /**
+     * Creates a sparse copy of a network.
+     *
+     * @param net         The (usually pruned) trained network.
+     * @param max_density The largest fraction of nonzero W1 weights for
+     *                    which CSR storage is used.
+     */
+    SparseNeural(Neural net, double max_density) {
+        NumInputs = net.NumInputs;
+        NumHidden = net.NumHidden;
+        NumOutputs = net.NumOutputs;
+        SoftmaxOutput = net.SoftmaxOutput;
+        Inputs = new double[NumInputs];
+        Hidden = new double[NumHidden];
+        Outputs = new double[NumOutputs];
+
+        W2 = new double[NumHidden][];
+        for (int h = 0; h < NumHidden; h++)
+            W2[h] = net.W2[h].clone();
+
+        int nonzero = CountNonZero(net);
+        double total = Math.max(1, NumInputs * NumHidden);
+        if (nonzero / total > max_density) {
+            W1T = new double[NumHidden][NumInputs];
+            for (int i = 0; i < NumInputs; i++)
+                for (int h = 0; h < NumHidden; h++)
+                    W1T[h][i] = net.W1[i][h];
+            return;
+        }
+        RowStart = new int[NumHidden + 1];
+        Columns = new int[nonzero];
+        Values = new double[nonzero];
+        int k = 0;
+        for (int h = 0; h < NumHidden; h++) {
+            RowStart[h] = k;
+            for (int i = 0; i < NumInputs; i++) {
+                if (net.W1[i][h] != 0.0) {
+                    Columns[k] = i;
+                    Values[k++] = net.W1[i][h];
+                }
+            }
+        }
+        RowStart[NumHidden] = k;
+    }
+
+    /**
+     * Returns true if W1 is held in CSR form rather than as a dense matrix.
+     *
+     * @return True for sparse storage.
+     */
+    public boolean IsSparse() {
+        return W1T == null;
+    }
+
+    /**
+     * Returns the fraction of W1 weights that are stored.
+     *
+     * @return The density of W1, between 0 and 1.
+     */
+    public double Density() {
+        if (!IsSparse()) return 1.0;
+        return (double) Values.length / Math.max(1, NumInputs * NumHidden);
+    }
+
+    /**
+     * Performs a forward pass using the values in Inputs, leaving the
+     * results in Outputs.
+     */
+    public void ForwardPass() {
+        int i, h, o;
+        if (IsSparse()) {
+            for (h = 0; h < NumHidden; h++) {
+                double sum = 0.0;
+                for (int k = RowStart[h]; k < RowStart[h + 1]; k++)
+                    sum += Inputs[Columns[k]] * Values[k];
+                Hidden[h] = sum;
+            }
+        } else {
+            for (h = 0; h < NumHidden; h++) {
+                double row[] = W1T[h];
+                double sum = 0.0;
+                for (i = 0; i < NumInputs; i++)
+                    sum += Inputs[i] * row[i];
+                Hidden[h] = sum;
+            }
+        }
+        for (o = 0; o < NumOutputs; o++)
+            Outputs[o] = 0.0;
+        for (h = 0; h < NumHidden; h++) {
+            double s = Neural.ShiftedSigmoid(Hidden[h]);
+            for (o = 0; o < NumOutputs; o++)
+                Outputs[o] += s * W2[h][o];
+        }
+        if (SoftmaxOutput) {
+            Neural.Softmax(Outputs, 0, NumOutputs, null);
+        } else {
+            for (o = 0; o < NumOutputs; o++)
+                Outputs[o] = Neural.ShiftedSigmoid(Outputs[o]);
+        }
+    }
+
+    /**
+     * Zeroes every W1 weight whose magnitude is below a threshold, then
+     * optionally fine-tunes the surviving weights on the network's own
+     * training cases. Pruned weights stay at zero during fine-tuning.
+     *
+     * @param net       The network to prune in place.
+     * @param threshold Weights with |w| < threshold are removed.
+     * @param epochs    The number of fine-tuning epochs (0 for none).
+     * @return The error of the last fine-tuning epoch, or 0 if epochs is 0.
+     */
+    public static double Prune(Neural net, double threshold, int epochs) {
+        boolean mask[][] = new boolean[net.NumInputs][net.NumHidden];
+        for (int i = 0; i < net.NumInputs; i++) {
+            for (int h = 0; h < net.NumHidden; h++) {
+                if (Math.abs(net.W1[i][h]) < threshold) {
+                    mask[i][h] = true;
+                    net.W1[i][h] = 0.0;
+                }
+            }
+        }
+        net.PrunedW1 = mask;
+        net.WeightsChanged();
+        double error = 0.0;
+        for (int e = 0; e < epochs; e++)
+            error = net.Train();
+        return error;
+    }
+
+    /**
+     * Prunes the smallest W1 weights until a target fraction of them is zero.
+     *
+     * @param net      The network to prune in place.
+     * @param sparsity The fraction of W1 weights to remove, e.g. 0.9.
+     * @param epochs   The number of fine-tuning epochs (0 for none).
+     * @return The error of the last fine-tuning epoch, or 0 if epochs is 0.
+     */
+    public static double PruneToSparsity(Neural net, double sparsity, int epochs) {
+        return Prune(net, ThresholdForSparsity(net, sparsity), epochs);
+    }
+
+    /**
+     * Finds the W1 magnitude threshold that removes a given fraction of weights.
+     *
+     * @param net      The network whose W1 weights are examined.
+     * @param sparsity The fraction of W1 weights to remove.
+     * @return The magnitude threshold to pass to Prune.
+     */
+    public static double ThresholdForSparsity(Neural net, double sparsity) {
+        int n = net.NumInputs * net.NumHidden;
+        if (n == 0 || sparsity <= 0.0) return 0.0;
+        double mags[] = new double[n];
+        int k = 0;
+        for (int i = 0; i < net.NumInputs; i++)
+            for (int h = 0; h < net.NumHidden; h++)
+                mags[k++] = Math.abs(net.W1[i][h]);
+        Arrays.sort(mags);
+        int cut = (int) Math.round(sparsity * n);
+        if (cut >= n) return Double.POSITIVE_INFINITY;
+        return mags[cut];
+    }
+
+    private static int CountNonZero(Neural net) {
+        int count = 0;
+        for (int i = 0; i < net.NumInputs; i++)
+            for (int h = 0; h < net.NumHidden; h++)
+                if (net.W1[i][h] != 0.0) count++;
+        return count;
+    }
+}
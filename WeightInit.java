@@ -0,0 +1,106 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+/**
+ * The WeightInit class fills weight matrices with random initial values.
+ * Every matrix row gets its own SplittableRandom stream whose seed is
+ * derived from a master seed, the layer and the row number, so the
+ * result depends only on the master seed: it is the same whether rows
+ * are filled sequentially or in parallel, and building many networks at
+ * once shares no generator between threads.
+ *
+ * Schemes:
+ *   UNIFORM  uniform in -0.05..0.05 (the original Neural initialization)
+ *   XAVIER   uniform in +-sqrt(6 / (fan_in + fan_out))
+ *   HE       uniform in +-sqrt(6 / fan_in)
+ */
+class WeightInit extends Object {
+
+    public static final int UNIFORM = 0;
+    public static final int XAVIER = 1;
+    public static final int HE = 2;
+
+    // Matrices with at least this many weights are filled in parallel:
+    public static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    public int Scheme;
+    public long Seed;
+
+    /**
+     * Creates an initializer.
+     *
+     * @param scheme UNIFORM, XAVIER or HE.
+     * @param seed   The master seed.
+     */
+    WeightInit(int scheme, long seed) {
+        Scheme = scheme;
+        Seed = seed;
+    }
+
+    /**
+     * Returns a fresh master seed for unseeded initialization, without
+     * touching any generator shared between threads.
+     */
+    public static long RandomSeed() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+
+    /**
+     * Initializes both weight matrices of a network.
+     *
+     * @param net The network.
+     */
+    public void Apply(Neural net) {
+        Fill(net.W1, 0, net.NumInputs, net.NumHidden);
+        Fill(net.W2, 1, net.NumHidden, net.NumOutputs);
+        net.WeightsChanged();
+    }
+
+    /**
+     * Initializes one weight matrix W[fan_in][fan_out].
+     *
+     * @param W       The matrix.
+     * @param layer   The layer number, used to derive the row seeds.
+     * @param fan_in  The number of rows.
+     * @param fan_out The number of columns.
+     */
+    public void Fill(double[][] W, int layer, int fan_in, int fan_out) {
+        double limit = Limit(fan_in, fan_out);
+        if ((long) fan_in * fan_out >= PARALLEL_THRESHOLD) {
+            IntStream.range(0, fan_in).parallel()
+                    .forEach(r -> FillRow(W[r], layer, r, fan_out, limit));
+        } else {
+            for (int r = 0; r < fan_in; r++)
+                FillRow(W[r], layer, r, fan_out, limit);
+        }
+    }
+
+    /**
+     * Returns the half width of the uniform range for a layer.
+     */
+    public double Limit(int fan_in, int fan_out) {
+        switch (Scheme) {
+            case XAVIER:
+                return Math.sqrt(6.0 / Math.max(1, fan_in + fan_out));
+            case HE:
+                return Math.sqrt(6.0 / Math.max(1, fan_in));
+            default:
+                return 0.05;
+        }
+    }
+
+    private void FillRow(double row[], int layer, int r, int n, double limit) {
+        SplittableRandom random = new SplittableRandom(RowSeed(layer, r));
+        for (int c = 0; c < n; c++)
+            row[c] = limit * (2.0 * random.nextDouble() - 1.0);
+    }
+
+    // A SplitMix64 step over (seed, layer, row) gives well separated streams:
+    private long RowSeed(int layer, int r) {
+        long z = Seed + 0x9E3779B97F4A7C15L * (((long) layer << 32) + r + 1);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * The WeightPyramid class keeps min / max / mean summaries of a weight
+ * matrix W[rows][cols] at several levels of detail, for drawing matrices
+ * far larger than the screen. Level 0 summarizes Tile x Tile blocks of
+ * weights; each higher level summarizes 2 x 2 cells of the level below.
+ *
+ * Invalidation is for the whole matrix, not per tile: when the version of
+ * the matrix changes (see SetVersion), every level 0 tile goes stale. Each
+ * training step is an outer product that moves nearly every weight of a
+ * matrix that is not frozen, so tracking dirty tiles in the update paths
+ * would add work to every training case without saving any here. What is
+ * bounded is the refresh: Update recomputes at most a given number of
+ * stale level 0 tiles per call, continuing where the last call stopped,
+ * and only the higher cells whose children changed. Drawing one frame
+ * therefore costs a bounded amount of work however large the matrix is; a
+ * display that is out of date catches up over a few frames, and one that
+ * is up to date costs nothing.
+ */
+class WeightPyramid extends Object {
+
+    protected double W[][];
+    protected int Rows;
+    protected int Cols;
+    protected int Tile;
+    public int NumLevels;
+
+    // Per level, cells are stored row-major, CellsDown(level) cells per row:
+    protected float Min[][];
+    protected float Max[][];
+    protected float Mean[][];
+    protected int Count[][];
+    // Higher level cells waiting to be recomputed from their children,
+    // flagged in Stale and listed in the first NumDirty entries of Dirty:
+    protected boolean Stale[][];
+    protected int Dirty[][];
+    protected int NumDirty[];
+
+    // Stamp[t] == Version when level 0 tile t is up to date:
+    protected int Stamp[];
+    protected int Version;
+    protected int Cursor = 0;
+    // The number of level 0 tiles whose Stamp is not Version:
+    protected int StaleTiles;
+
+    /**
+     * Creates the pyramid for a weight matrix; all summaries start stale.
+     *
+     * @param w    The weights, [rows][cols] (read, never modified).
+     * @param rows The number of rows.
+     * @param cols The number of columns.
+     * @param tile The side of a level 0 tile, in weights.
+     */
+    WeightPyramid(double w[][], int rows, int cols, int tile) {
+        W = w;
+        Rows = rows;
+        Cols = cols;
+        Tile = Math.max(1, tile);
+        int levels = 1;
+        while (CellsAcross(levels - 1) > 1 || CellsDown(levels - 1) > 1) levels++;
+        NumLevels = levels;
+        Min = new float[levels][];
+        Max = new float[levels][];
+        Mean = new float[levels][];
+        Count = new int[levels][];
+        Stale = new boolean[levels][];
+        Dirty = new int[levels][];
+        NumDirty = new int[levels];
+        for (int l = 0; l < levels; l++) {
+            int n = CellsAcross(l) * CellsDown(l);
+            Min[l] = new float[n];
+            Max[l] = new float[n];
+            Mean[l] = new float[n];
+            Count[l] = new int[n];
+            Stale[l] = new boolean[n];
+            Dirty[l] = new int[n];
+        }
+        Stamp = new int[Min[0].length];
+        Version = 1; // every Stamp (0) is stale
+        StaleTiles = Stamp.length;
+    }
+
+    /**
+     * Returns the side of a cell at a level, in weights.
+     */
+    public int Span(int level) {
+        return Tile << level;
+    }
+
+    /**
+     * Returns the number of cells along the rows of W at a level.
+     */
+    public int CellsAcross(int level) {
+        return (Rows + Span(level) - 1) / Span(level);
+    }
+
+    /**
+     * Returns the number of cells along the columns of W at a level.
+     */
+    public int CellsDown(int level) {
+        return (Cols + Span(level) - 1) / Span(level);
+    }
+
+    public float Min(int level, int r, int c) {
+        return Min[level][r * CellsDown(level) + c];
+    }
+
+    public float Max(int level, int r, int c) {
+        return Max[level][r * CellsDown(level) + c];
+    }
+
+    public float Mean(int level, int r, int c) {
+        return Mean[level][r * CellsDown(level) + c];
+    }
+
+    /**
+     * Marks every summary stale if the matrix changed since the last call.
+     * Pass a version that changes only when W does, e.g. the network's
+     * W1Version for W1, so a frozen matrix is never summarized again.
+     *
+     * @param version The version of W.
+     */
+    public void SetVersion(int version) {
+        if (version + 1 != Version) {
+            Version = version + 1;
+            Cursor = 0;
+            StaleTiles = Stamp.length;
+        }
+    }
+
+    /**
+     * Refreshes up to budget stale level 0 tiles and the cells above them.
+     *
+     * @param budget The largest number of level 0 tiles to recompute.
+     * @return True if every summary is now up to date.
+     */
+    public boolean Update(int budget) {
+        if (StaleTiles == 0) return true; // nothing changed since the last frame
+        int tiles = Stamp.length, down = CellsDown(0);
+        int done = 0;
+        while (done < budget && StaleTiles > 0) {
+            int t = Cursor;
+            Cursor = (Cursor + 1) % tiles;
+            if (Stamp[t] == Version) continue;
+            Stamp[t] = Version;
+            StaleTiles--;
+            int tr = t / down, tc = t % down;
+            if (Summarize(t, tr * Tile, tc * Tile) && NumLevels > 1)
+                MarkStale(1, (tr >> 1) * CellsDown(1) + (tc >> 1));
+            done++;
+        }
+        for (int l = 1; l < NumLevels; l++) {
+            int l_down = CellsDown(l);
+            for (int k = 0; k < NumDirty[l]; k++) {
+                int j = Dirty[l][k];
+                Stale[l][j] = false;
+                if (Combine(l, j / l_down, j % l_down) && l + 1 < NumLevels)
+                    MarkStale(l + 1, ((j / l_down) >> 1) * CellsDown(l + 1) + ((j % l_down) >> 1));
+            }
+            NumDirty[l] = 0;
+        }
+        return StaleTiles == 0;
+    }
+
+    private void MarkStale(int l, int j) {
+        if (Stale[l][j]) return;
+        Stale[l][j] = true;
+        Dirty[l][NumDirty[l]++] = j;
+    }
+
+    // Recomputes a level 0 tile; returns true if its summary changed:
+    private boolean Summarize(int t, int r0, int c0) {
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        double sum = 0.0;
+        int r1 = Math.min(Rows, r0 + Tile), c1 = Math.min(Cols, c0 + Tile);
+        for (int r = r0; r < r1; r++) {
+            double row[] = W[r];
+            for (int c = c0; c < c1; c++) {
+                double x = row[c];
+                if (x < min) min = (float) x;
+                if (x > max) max = (float) x;
+                sum += x;
+            }
+        }
+        return Set(0, t, min, max, (float) (sum / ((r1 - r0) * (c1 - c0))), (r1 - r0) * (c1 - c0));
+    }
+
+    // Recomputes a higher cell from its (up to four) children:
+    private boolean Combine(int l, int r, int c) {
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        double sum = 0.0;
+        int count = 0, down = CellsDown(l - 1);
+        for (int cr = 2 * r; cr < Math.min(2 * r + 2, CellsAcross(l - 1)); cr++) {
+            for (int cc = 2 * c; cc < Math.min(2 * c + 2, down); cc++) {
+                int j = cr * down + cc;
+                min = Math.min(min, Min[l - 1][j]);
+                max = Math.max(max, Max[l - 1][j]);
+                sum += (double) Mean[l - 1][j] * Count[l - 1][j];
+                count += Count[l - 1][j];
+            }
+        }
+        return Set(l, r * CellsDown(l) + c, min, max, (float) (sum / Math.max(1, count)), count);
+    }
+
+    private boolean Set(int l, int j, float min, float max, float mean, int count) {
+        boolean changed = Min[l][j] != min || Max[l][j] != max ||
+                Mean[l][j] != mean || Count[l][j] != count;
+        Min[l][j] = min;
+        Max[l][j] = max;
+        Mean[l][j] = mean;
+        Count[l][j] = count;
+        return changed;
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The SegmentStore class is a DoubleStore outside the Java heap, built on
+ * the Foreign Function and Memory API (final in JDK 22). The values live in
+ * a 64 byte aligned segment of native memory or, when a directory is given,
+ * in a memory mapped temporary file there, so a training set may be larger
+ * than both the heap and the 2^31 values of a double array, and the garbage
+ * collector never scans or copies it. The memory is released by close(),
+ * not by the collector.
+ *
+ * The mapped file is scratch space for one process, not a way to share a
+ * model: it is created with a temporary name, deleted by close() (or at
+ * exit), and holds only what NNfile keeps in its store, which does not
+ * include W1 and W2. Processes that need the same model load it from its
+ * network file.
+ *
+ * This file is kept out of the default build, which targets JDK 17. To use
+ * it, compile the tree and then this file on JDK 22 or later:
+ *
+ *   javac -d classes *.java
+ *   javac --release 22 -cp classes -d classes jdk22/SegmentStore.java
+ *   java -cp classes -Dneural.storage=offheap [-Dneural.storage.dir=/big/disk] NNtool ...
+ *
+ * NNfile.NewStore loads this class by name and falls back to HeapStore when
+ * it is missing or the JVM is too old.
+ *
+ * Nothing in the default build compiles this file. Its callers were checked
+ * on JDK 17 against a stand-in with this class's name and constructor that
+ * keeps the values in a double array: training through it gave bitwise the
+ * same weights as HeapStore. Whoever changes this file should compile it as
+ * above and train with and without -Dneural.storage=offheap, both with and
+ * without neural.storage.dir, comparing the saved networks.
+ */
+class SegmentStore extends Object implements DoubleStore {
+
+    private static final ValueLayout.OfDouble DOUBLE = ValueLayout.JAVA_DOUBLE;
+
+    private Arena Memory;
+    private MemorySegment Values;
+    private long Size;
+    // The mapped file and its channel, or null for native memory:
+    private Path MappedFile = null;
+    private FileChannel Channel = null;
+
+    /**
+     * Creates a store of size values (all zero).
+     *
+     * @param size The number of values.
+     * @param dir  The directory for the mapped file, or null for native memory.
+     */
+    public SegmentStore(long size, String dir) throws IOException {
+        if (dir != null) {
+            MappedFile = Files.createTempFile(Paths.get(dir), "nnfile", ".dat");
+            MappedFile.toFile().deleteOnExit();
+            Channel = FileChannel.open(MappedFile, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+        Memory = Arena.ofShared();
+        Values = Allocate(Memory, size);
+        Size = size;
+    }
+
+    // A new segment of size values; a mapping extends the file as needed:
+    private MemorySegment Allocate(Arena arena, long size) {
+        long bytes = size * Double.BYTES;
+        if (Channel == null) return arena.allocate(bytes, 64);
+        try {
+            return Channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes, arena);
+        } catch (IOException e) {
+            throw new java.io.UncheckedIOException("can not map " + MappedFile, e);
+        }
+    }
+
+    public long Length() {
+        return Size;
+    }
+
+    public double Get(long index) {
+        return Values.getAtIndex(DOUBLE, index);
+    }
+
+    public void Set(long index, double x) {
+        Values.setAtIndex(DOUBLE, index, x);
+    }
+
+    public void Read(long index, double dst[], int off, int n) {
+        MemorySegment.copy(Values, DOUBLE, index * Double.BYTES, dst, off, n);
+    }
+
+    public void Write(long index, double src[], int off, int n) {
+        MemorySegment.copy(src, off, Values, DOUBLE, index * Double.BYTES, n);
+    }
+
+    public void Move(long from, long to, long n) {
+        // overlapping copies within one segment behave like memmove:
+        MemorySegment.copy(Values, from * Double.BYTES, Values, to * Double.BYTES,
+                n * Double.BYTES);
+    }
+
+    public void Grow(long size) {
+        if (size <= Size) return;
+        size = Math.max(size, 2 * Size);
+        Arena arena = Arena.ofShared();
+        MemorySegment values = Allocate(arena, size);
+        // a mapping of the same file already holds the old values:
+        if (Channel == null)
+            MemorySegment.copy(Values, 0, values, 0, Size * Double.BYTES);
+        Memory.close();
+        Memory = arena;
+        Values = values;
+        Size = size;
+    }
+
+    public void close() {
+        if (Memory == null) return;
+        Memory.close();
+        Memory = null;
+        Values = null;
+        if (Channel != null) {
+            try {
+                Channel.close();
+                Files.deleteIfExists(MappedFile);
+            } catch (IOException e) {
+                System.out.println("can not remove " + MappedFile);
+            }
+        }
+    }
+}
@@ -1,4 +1,5 @@
 import java.awt.*;
+import java.awt.event.KeyEvent;
 
 public class testHand extends GUI implements Runnable {
 
@@ -28,6 +29,16 @@ public class testHand extends GUI implements Runnable {
 
     // Count[NUM] is used for counting drawn chars
     int Count[] = {0, 0, 0, 0};
+    // range of cap_x/cap_y points for each drawn char:
+    int StrokeStart[][] = new int[NUM][NUM_EX];
+    int StrokeEnd[][] = new int[NUM][NUM_EX];
+
+    // if true, train() also trains on distorted copies of the drawn chars:
+    boolean Augment = false;
+    final static int AUG_BATCH = 16;
+
+    // if set, every drawn char is also learned right away (-online):
+    OnlineLearner Learner = null;
 
     // data for determining when a new character
     // is being drawn:
@@ -44,6 +55,23 @@ public class testHand extends GUI implements Runnable {
 
     // Neural network:
     Neural network;
+    // if set (-conv), the grid goes through convolution layers first and
+    // network is the dense part of ConvNet:
+    ConvNeural ConvNet = null;
+    // the grid cells: network.Inputs, or ConvNet.Inputs with -conv:
+    double GridInputs[];
+
+    // Weight matrix display: matrices larger than the view are drawn from
+    // a level of detail pyramid; keys + and - zoom, the arrow keys pan:
+    final static int VIEW_WIDTH = 560;
+    final static int VIEW_HEIGHT = 120;
+    final static int MIN_CELL = 4;     // smallest cell drawn, in pixels
+    final static int TILE = 8;         // pyramid tile side, in weights
+    final static int TILE_BUDGET = 512; // pyramid tiles refreshed per frame
+    WeightPyramid Pyramid1 = null;
+    WeightPyramid Pyramid2 = null;
+    int WeightZoom = 0;
+    double PanX = 0.0, PanY = 0.0;     // view position, 0..1 of each matrix
 
     public String getAppletInfo() {
         return "Neural Network Simulator for SE428";
@@ -61,6 +89,10 @@ public class testHand extends GUI implements Runnable {
         BigText = 1;
 
         network = new Neural(XSIZE * YSIZE, 10, NUM);
+        // every grid cell is -0.4 or +0.4, so recognitions can be cached:
+        network.Cache = new InferenceCache(network, -0.4f, +0.4f, 1024);
+        network.BinaryKernel = new BinaryForward(network, -0.4f, +0.4f);
+        GridInputs = network.Inputs;
         //network.MyGUI = this;
 
         RunLabel = new String("Train");
@@ -101,14 +133,66 @@ public class testHand extends GUI implements Runnable {
                         outs[oc++] = +0.4f;
             }
         }
-        for (int i = 0; i < 3000; i++) {
-            double error = network.Train(ins, outs, sum);
-            Errors[NumErrors++] = error;
-            if ((i % 10) == 0) {
-                P("Output error for iteration " + i + " =" + error + "\n");
+        // captures that rasterize to the same grid train as one weighted case:
+        int weights[] = null;
+        if (sum > 1) {
+            int size = XSIZE * YSIZE;
+            NNfile cases = new NNfile(size, network.NumHidden, NUM);
+            for (int k = 0; k < sum; k++)
+                cases.AddTraining(java.util.Arrays.copyOfRange(ins, k * size, (k + 1) * size),
+                        java.util.Arrays.copyOfRange(outs, k * NUM, (k + 1) * NUM));
+            if (cases.Compact() > 0) {
+                P("Merged " + sum + " examples into " + cases.NumTraining + " distinct grids\n");
+                sum = cases.NumTraining;
+                for (int k = 0; k < sum; k++) {
+                    for (int i = 0; i < size; i++)
+                        ins[k * size + i] = cases.GetInput(k, i);
+                    for (int o = 0; o < NUM; o++)
+                        outs[k * NUM + o] = cases.GetOutput(k, o);
+                }
+                weights = cases.CaseWeights;
+            }
+        }
+        AugmentPipeline pipeline = null;
+        double aug_ins[] = null, aug_outs[] = null;
+        if (Augment && sum > 0) {
+            pipeline = new AugmentPipeline(XSIZE, YSIZE, NUM, -0.4f, +0.4f, 8 * AUG_BATCH, 1);
+            for (int i = 0; i < NUM; i++)
+                for (int j = 0; j < Count[i]; j++)
+                    pipeline.AddExample(cap_x, cap_y, StrokeStart[i][j], StrokeEnd[i][j], i);
+            pipeline.Start(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+            aug_ins = new double[AUG_BATCH * XSIZE * YSIZE];
+            aug_outs = new double[AUG_BATCH * NUM];
+        }
+        try {
+            for (int i = 0; i < 3000; i++) {
+                double error;
+                synchronized (network) {
+                    error = ConvNet != null ? ConvNet.Train(ins, outs, weights, sum)
+                            : network.Train(ins, outs, weights, sum);
+                }
+                Errors[NumErrors++] = error;
+                if ((i % 10) == 0) {
+                    P("Output error for iteration " + i + " =" + error + "\n");
+                }
+                if (error < 0.1f)
+                    break; // done training
+                if (pipeline != null) {
+                    pipeline.TakeBatch(aug_ins, aug_outs, AUG_BATCH);
+                    synchronized (network) {
+                        if (ConvNet != null) ConvNet.Train(aug_ins, aug_outs, AUG_BATCH);
+                        else network.Train(aug_ins, aug_outs, AUG_BATCH);
+                    }
+                }
             }
-            if (error < 0.1f)
-                break; // done training
+        } catch (InterruptedException e) {
+            P("Training interrupted\n");
+        } finally {
+            if (pipeline != null) pipeline.Stop();
+        }
+        if (sum > 0) {
+            double features[] = ConvNet != null ? ConvNet.Features(ins, sum) : ins;
+            P(new Evaluator(network).Evaluate(features, outs, weights, sum).Report(Chars));
         }
     }
 
@@ -133,7 +217,7 @@ public class testHand extends GUI implements Runnable {
         for (int x = 0; x < XSIZE; x++) {
             for (int y = 0; y < YSIZE; y++) {
                 paintGridCell(g, inputGridX + x * cellSize, inputGridY + y * cellSize, cellSize,
-                        network.Inputs[x * YSIZE + y], -0.5f, 0.5f);
+                        GridInputs[x * YSIZE + y], -0.5f, 0.5f);
             }
         }
         g.drawString("Input Grid:", inputGridX, inputGridY - 5);
@@ -146,16 +230,25 @@ public class testHand extends GUI implements Runnable {
     
         paintNeuronLayer(g, leftEdge, topEdge, "Inputs:", network.Inputs, network.NumInputs);
     
+        if (Pyramid1 == null) {
+            Pyramid1 = new WeightPyramid(network.W1, network.NumInputs, network.NumHidden, TILE);
+            Pyramid2 = new WeightPyramid(network.W2, network.NumHidden, network.NumOutputs, TILE);
+        }
+        int height1 = WeightsHeight(network.NumHidden);
+        int height2 = WeightsHeight(network.NumOutputs);
+
         paintWeights(g, leftEdge, topEdge + layerSpacing, "Weights 1:", 
-                      network.W1, network.NumInputs, network.NumHidden);
+                      network.W1, network.NumInputs, network.NumHidden, Pyramid1,
+                      network.W1Version);
     
-        paintNeuronLayer(g, leftEdge, topEdge + 2 * layerSpacing + (network.NumHidden) * 12, 
+        paintNeuronLayer(g, leftEdge, topEdge + 2 * layerSpacing + height1, 
                          "Hidden:", network.Hidden, network.NumHidden);
     
-        paintWeights(g, leftEdge, topEdge + 3 * layerSpacing + (network.NumHidden) * 12, 
-                      "Weights 2:", network.W2, network.NumHidden, network.NumOutputs);
+        paintWeights(g, leftEdge, topEdge + 3 * layerSpacing + height1, 
+                      "Weights 2:", network.W2, network.NumHidden, network.NumOutputs, Pyramid2,
+                      network.W2Version);
     
-        paintNeuronLayer(g, leftEdge, topEdge + 4 * layerSpacing + (network.NumHidden + network.NumOutputs) * 12, 
+        paintNeuronLayer(g, leftEdge, topEdge + 4 * layerSpacing + height1 + height2, 
                          "Outputs:", network.Outputs, network.NumOutputs);
                          
         g.drawString("Cumulative error summed over output neurons", X_Pos[0], Y_Pos + 300);
@@ -190,15 +283,86 @@ public class testHand extends GUI implements Runnable {
 
     private void paintWeights(Graphics g, int x, int y, 
                           String title, double[][] w1,
-                          int num1, int num2) 
+                          int num1, int num2, WeightPyramid pyramid, int version) 
     {
-        for (int i=0; i<num1; i++) {
-            for (int j=0; j<num2; j++) {
-                paintGridCell(g, x + i * 12, y + j * 12, 10, 
-                                    w1[i][j], -1.5f, 1.5f);
+        if (WeightZoom == 0 && num1 * 12 <= VIEW_WIDTH && num2 * 12 <= VIEW_HEIGHT) {
+            // small enough to draw every weight:
+            for (int i=0; i<num1; i++) {
+                for (int j=0; j<num2; j++) {
+                    paintGridCell(g, x + i * 12, y + j * 12, 10, 
+                                        w1[i][j], -1.5f, 1.5f);
+                }
             }
+            g.drawString(title, x, y + 10);
+            return;
         }
-        g.drawString(title, x, y + 10);
+        // the visible part of the matrix, in weights:
+        int vis1 = Math.max(1, num1 >> WeightZoom);
+        int vis2 = Math.max(1, num2 >> WeightZoom);
+        int first1 = (int) (PanX * (num1 - vis1));
+        int first2 = (int) (PanY * (num2 - vis2));
+        int height = WeightsHeight(num2);
+        double scale = Math.min((double) VIEW_WIDTH / vis1, (double) height / vis2);
+        Graphics view = g.create(x, y, VIEW_WIDTH, height);
+        if (scale >= MIN_CELL) {
+            int size = (int) Math.ceil(scale);
+            for (int i = first1; i < first1 + vis1; i++) {
+                for (int j = first2; j < first2 + vis2; j++) {
+                    view.setColor(cellColor(w1[i][j], -1.5f, 1.5f));
+                    view.fillRect((int) ((i - first1) * scale), (int) ((j - first2) * scale), size, size);
+                }
+            }
+        } else {
+            // the finest pyramid level whose cells are at least MIN_CELL pixels:
+            int level = 0;
+            while (level < pyramid.NumLevels - 1 && pyramid.Span(level) * scale < MIN_CELL)
+                level++;
+            pyramid.SetVersion(version);
+            if (!pyramid.Update(TILE_BUDGET))
+                repaint(); // finish refreshing over the next frames
+            int span = pyramid.Span(level);
+            int size = (int) Math.ceil(span * scale);
+            for (int r = first1 / span; r <= (first1 + vis1 - 1) / span; r++) {
+                for (int c = first2 / span; c <= (first2 + vis2 - 1) / span; c++) {
+                    int cx = (int) ((r * span - first1) * scale);
+                    int cy = (int) ((c * span - first2) * scale);
+                    view.setColor(cellColor(pyramid.Mean(level, r, c), -1.5f, 1.5f));
+                    view.fillRect(cx, cy, size, size);
+                    if (size >= 2 * MIN_CELL) {
+                        // mark the most extreme weight of the cell:
+                        float min = pyramid.Min(level, r, c), max = pyramid.Max(level, r, c);
+                        view.setColor(cellColor(-min > max ? min : max, -1.5f, 1.5f));
+                        view.fillRect(cx + size / 4, cy + size / 4, size / 2, size / 2);
+                    }
+                }
+            }
+        }
+        view.dispose();
+        g.setColor(Color.black);
+        g.drawRect(x, y, (int) Math.min(VIEW_WIDTH, vis1 * scale), height);
+        g.drawString(title + " (" + vis1 + "x" + vis2 + " of " + num1 + "x" + num2 + ")", x, y + 10);
+    }
+
+    // Height of the view of a weight matrix with num2 columns:
+    private int WeightsHeight(int num2) {
+        return Math.min(num2 * 12, VIEW_HEIGHT);
+    }
+
+    public boolean doKeyDown(KeyEvent e) {
+        char key = e.getKeyChar();
+        int code = e.getKeyCode();
+        double step = 0.25 / (1 << WeightZoom);
+        if (key == '+' || key == '=') WeightZoom = Math.min(WeightZoom + 1, 16);
+        else if (key == '-') WeightZoom = Math.max(WeightZoom - 1, 0);
+        else if (key == '0') {
+            WeightZoom = 0;
+            PanX = PanY = 0.0;
+        } else if (code == KeyEvent.VK_LEFT) PanX = Math.max(0.0, PanX - step);
+        else if (code == KeyEvent.VK_RIGHT) PanX = Math.min(1.0, PanX + step);
+        else if (code == KeyEvent.VK_UP) PanY = Math.max(0.0, PanY - step);
+        else if (code == KeyEvent.VK_DOWN) PanY = Math.min(1.0, PanY + step);
+        else return false;
+        return true;
     }
 
     public void run() {
@@ -252,39 +416,43 @@ public class testHand extends GUI implements Runnable {
 
         // Special case:Mode==1 for testing:
         if (Mode == 1) {
-            int ic = 0;
-            for (int x = 0; x < XSIZE; x++) {
-                for (int y = 0; y < YSIZE; y++) {
-                    network.Inputs[ic++] = -0.4f;
-                }
-            }
-            for (int i = MousePointIndex; i < num_cap; i++) {
-                double xx = (double) (cap_x[i] - x_min) / (double) (x_max - x_min);
-                xx *= XSIZE;
-                double yy = (double) (cap_y[i] - y_min) / (double) (y_max - y_min);
-                yy *= YSIZE;
-                int ix = (int) xx;
-                int iy = (int) yy;
-                if (ix < 0)
-                    ix = 0;
-                if (ix >= XSIZE)
-                    ix = XSIZE - 1;
-                if (iy < 0)
-                    iy = 0;
-                if (iy >= YSIZE)
-                    iy = YSIZE - 1;
-                network.Inputs[ix * YSIZE + iy] = +0.4f;
-            }
-            // Propagate input neuron values through
-            // to the hidden, then output neuron layer:
-            network.ForwardPass();
-            // Find the largest output neuron value:
             int index = 0;
-            double maxVal = -99f;
-            for (int i = 0; i < NUM; i++) {
-                if (network.Outputs[i] > maxVal) {
-                    maxVal = network.Outputs[i];
-                    index = i;
+            // the online learner may be training the network:
+            synchronized (network) {
+                int ic = 0;
+                for (int x = 0; x < XSIZE; x++) {
+                    for (int y = 0; y < YSIZE; y++) {
+                        GridInputs[ic++] = -0.4f;
+                    }
+                }
+                for (int i = MousePointIndex; i < num_cap; i++) {
+                    double xx = (double) (cap_x[i] - x_min) / (double) (x_max - x_min);
+                    xx *= XSIZE;
+                    double yy = (double) (cap_y[i] - y_min) / (double) (y_max - y_min);
+                    yy *= YSIZE;
+                    int ix = (int) xx;
+                    int iy = (int) yy;
+                    if (ix < 0)
+                        ix = 0;
+                    if (ix >= XSIZE)
+                        ix = XSIZE - 1;
+                    if (iy < 0)
+                        iy = 0;
+                    if (iy >= YSIZE)
+                        iy = YSIZE - 1;
+                    GridInputs[ix * YSIZE + iy] = +0.4f;
+                }
+                // Propagate input neuron values through
+                // to the hidden, then output neuron layer:
+                if (ConvNet != null) ConvNet.ForwardPass();
+                else network.CachedForwardPass();
+                // Find the largest output neuron value:
+                double maxVal = -99f;
+                for (int i = 0; i < NUM; i++) {
+                    if (network.Outputs[i] > maxVal) {
+                        maxVal = network.Outputs[i];
+                        index = i;
+                    }
                 }
             }
             P("\nCharacter recognized: " + Chars[index] + "\n");
@@ -304,16 +472,12 @@ public class testHand extends GUI implements Runnable {
             return;
         }
         P("Character " + Chars[char_type] + " drawn. # " + Count[char_type] + "\n");
-        if (Count[char_type] > (NUM_EX - 1)) {
+        if (Count[char_type] > (NUM_EX - 1) && Learner == null) {
             P("Too many examples for this char type: ignoring!\n");
             MousePointIndex = num_cap;
             return;
         }
-        for (int x = 0; x < XSIZE; x++) {
-            for (int y = 0; y < YSIZE; y++) {
-                Inputs[char_type][Count[char_type]][x][y] = 0;
-            }
-        }
+        int grid[][] = new int[XSIZE][YSIZE];
         for (int i = MousePointIndex; i < num_cap; i++) {
             double xx = (double) (cap_x[i] - x_min) / (double) (x_max - x_min);
             xx *= XSIZE;
@@ -329,10 +493,27 @@ public class testHand extends GUI implements Runnable {
                 iy = 0;
             if (iy >= YSIZE)
                 iy = YSIZE - 1;
-            Inputs[char_type][Count[char_type]][ix][iy] = 1;
+            grid[ix][iy] = 1;
+        }
+        if (Learner != null) {
+            double ins[] = new double[XSIZE * YSIZE];
+            double outs[] = new double[NUM];
+            int ic = 0;
+            for (int x = 0; x < XSIZE; x++)
+                for (int y = 0; y < YSIZE; y++)
+                    ins[ic++] = grid[x][y] == 0 ? -0.4f : +0.4f;
+            for (int k = 0; k < NUM; k++)
+                outs[k] = k == char_type ? +0.4f : -0.4f;
+            Learner.Add(ins, outs);
+            P("Learning character " + Chars[char_type] + " online\n");
+        }
+        if (Count[char_type] < NUM_EX) {
+            Inputs[char_type][Count[char_type]] = grid;
+            StrokeStart[char_type][Count[char_type]] = MousePointIndex;
+            StrokeEnd[char_type][Count[char_type]] = num_cap;
+            Count[char_type] += 1;
         }
         MousePointIndex = num_cap;
-        Count[char_type] += 1;
     }
 
     public void doMouseDown(int x, int y) {
@@ -356,6 +537,24 @@ public class testHand extends GUI implements Runnable {
 
     public static void main(String[] args) {
         testHand myApp = new testHand();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-conv")) {
+                // 8 3x3 filters over the grid, 2x2 max pooling:
+                myApp.ConvNet = new ConvNeural(XSIZE, YSIZE, 8, 3, 2, 10, NUM);
+                myApp.network = myApp.ConvNet.Dense;
+                myApp.GridInputs = myApp.ConvNet.Inputs;
+            }
+        }
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-augment"))
+                myApp.Augment = true;
+            if (args[i].equals("-softmax"))
+                myApp.network.SoftmaxOutput = true;
+            if (args[i].equals("-online") && myApp.ConvNet == null) {
+                myApp.Learner = new OnlineLearner(myApp.network, 256, 1);
+                myApp.Learner.Start();
+            }
+        }
         myApp.setSize(800, 600);
         myApp.setVisible(true);
         myApp.setLayout(new FlowLayout());